@@ -0,0 +1,103 @@
+package calibre.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * 使用不同的复制方式导出一本大的电子书：复制到 {@code books_output} 中的临时文件，再重命名为目标文件
+ * <p>
+ * 原文件和目标文件在同一个目录中，所以 {@code link} 总是可以创建硬链接。
+ * 文件系统不支持 reflink 时，{@code reflink} 的结果就是尝试 reflink 一次之后使用 {@code copy} 的结果。
+ * 可以使用 {@code -p directory=...} 指定 Btrfs、XFS 等文件系统中的目录。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class CopyStrategyBenchmark {
+
+    @Param({"copy", "transfer", "link", "reflink"})
+    public String strategy;
+
+    /**
+     * 电子书的大小：常见的 EPUB 和带图片的 MOBI
+     */
+    @Param({"4194304", "67108864"})
+    public int fileBytes;
+
+    /**
+     * 存放原文件和目标文件的目录，为空时使用系统的临时目录
+     */
+    @Param({""})
+    public String directory;
+
+    private Path workDirectory;
+
+    private Path source;
+
+    private Path target;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        workDirectory = directory.isEmpty()
+                ? Files.createTempDirectory("calibre-benchmark")
+                : Files.createTempDirectory(Paths.get(directory), "calibre-benchmark");
+        source = workDirectory.resolve("book.epub");
+        target = workDirectory.resolve("books_output.epub");
+        writeRandomFile(source, fileBytes);
+        ToolBridge.setCopyStrategy(strategy);
+    }
+
+    /**
+     * 随机的内容，避免文件系统压缩或者跳过全为 0 的数据块
+     */
+    private static void writeRandomFile(Path file, int size) throws IOException {
+        Random random = new Random(42);
+        byte[] chunk = new byte[1 << 20];
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            for (int written = 0; written < size; written += chunk.length) {
+                random.nextBytes(chunk);
+                out.write(ByteBuffer.wrap(chunk, 0, Math.min(chunk.length, size - written)));
+            }
+        }
+    }
+
+    @Benchmark
+    public void export() throws IOException {
+        ToolBridge.copyFileAtomically(source, target);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.list(workDirectory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(workDirectory);
+    }
+}
@@ -0,0 +1,70 @@
+package calibre.benchmark;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Path;
+
+/**
+ * 调用 CalibreTool 中的类和方法
+ * <p>
+ * CalibreTool 在默认包中，其他包中的代码无法直接引用，而 JMH 又要求 benchmark 不能在默认包中，
+ * 所以在这里通过 {@link MethodHandle} 调用。方法句柄保存在 static final 字段中，JIT 编译后和直接调用的开销相同。
+ */
+final class ToolBridge {
+
+    private static final MethodHandle COPY_STRATEGY_OF;
+
+    private static final MethodHandle SET_COPY_STRATEGY;
+
+    private static final MethodHandle COPY_FILE_ATOMICALLY;
+
+    static {
+        try {
+            Class<?> tool = Class.forName("CalibreTool");
+            Class<?> strategy = Class.forName("CalibreTool$CopyStrategy");
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(tool, MethodHandles.lookup());
+
+            COPY_STRATEGY_OF = lookup.findStatic(strategy, "of", MethodType.methodType(strategy, String.class))
+                    .asType(MethodType.methodType(Object.class, String.class));
+            SET_COPY_STRATEGY = lookup.findStaticSetter(tool, "copyStrategy", strategy)
+                    .asType(MethodType.methodType(void.class, Object.class));
+            COPY_FILE_ATOMICALLY = lookup.findStatic(tool, "copyFileAtomically",
+                    MethodType.methodType(void.class, Path.class, Path.class, boolean.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private ToolBridge() {
+    }
+
+    /**
+     * 设置 {@code CalibreTool.copyStrategy}
+     *
+     * @param name 复制方式的名称，和 {@code --copy-strategy} 相同
+     */
+    static void setCopyStrategy(String name) {
+        try {
+            SET_COPY_STRATEGY.invokeExact(COPY_STRATEGY_OF.invokeExact(name));
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * {@code CalibreTool.copyFileAtomically}：使用当前的复制方式复制到临时文件，再重命名为目标文件
+     */
+    static void copyFileAtomically(Path source, Path target) throws IOException {
+        try {
+            COPY_FILE_ATOMICALLY.invokeExact(source, target, true);
+        } catch (IOException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -1,22 +1,82 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.DirectoryStream;
 import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
-import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.Normalizer;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
-import java.util.stream.StreamSupport;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 /**
  * 读取 Calibre 目录中的 metadata.opf 里面的 <dc:title> 标签作为书的标题，
@@ -28,9 +88,10 @@ import java.util.stream.StreamSupport;
 public class CalibreTool {
 
     /**
-     * 相应的后缀
+     * 默认导出的格式
      */
-    public static final Set<String> BOOK_SUFFIXES = Set.of(".mobi", ".epub");
+    public static final Set<BookFormat> DEFAULT_FORMATS = Collections.unmodifiableSet(
+            EnumSet.of(BookFormat.MOBI, BookFormat.EPUB));
 
     /**
      * 含有标题的文件名
@@ -47,25 +108,72 @@ public class CalibreTool {
      */
     public static final String TITLE_TAG_SUFFIX = "</dc:title>";
 
+    /**
+     * metadata.opf 中 dc 标签的命名空间
+     */
+    public static final String DC_NAMESPACE = "http://purl.org/dc/elements/1.1/";
+
+    /**
+     * 只使用标题命名时的模板
+     */
+    public static final String TITLE_TEMPLATE = "{title}";
+
+    /**
+     * 文件名中不能使用的字符：Windows 不允许的字符和控制字符
+     */
+    private static final Pattern ILLEGAL_FILENAME_CHARS = Pattern.compile("[\\\\/:*?\"<>|\\p{Cntrl}]");
+
+    /**
+     * 文件名（不含后缀）最多的字节数，大部分文件系统的文件名最多为 255 字节，需要留出后缀和序号的位置
+     */
+    private static final int MAX_NAME_BYTES = 200;
+
+    /**
+     * Calibre 书籍目录的名称，例如 {@code 书名 (123)}，括号中是书籍在 Calibre 书库中的编号
+     */
+    private static final Pattern CALIBRE_BOOK_DIRECTORY = Pattern.compile(".* \\((\\d+)\\)");
+
+    /**
+     * 创建 {@link XMLStreamReader}。配置之后只用于创建 reader，可以在多个线程中共用
+     */
+    private static final XMLInputFactory XML_INPUT_FACTORY = createXmlInputFactory();
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    /**
+     * 命名模板中的变量，例如 {@code {author}}
+     */
+    private static final Pattern TEMPLATE_VARIABLE = Pattern.compile("\\{(\\w+)}");
+
     /**
      * 成功次数
      */
-    public static int successCount = 0;
+    public static final LongAdder SUCCESS_COUNT = new LongAdder();
 
     /**
      * 失败次数
      */
-    public static int failCount = 0;
+    public static final LongAdder FAIL_COUNT = new LongAdder();
 
     /**
      * 已经存在次数
      */
-    public static int existCount = 0;
+    public static final LongAdder EXIST_COUNT = new LongAdder();
+
+    /**
+     * 成功复制的字节数
+     */
+    public static final LongAdder COPIED_BYTES = new LongAdder();
+
+    /**
+     * 没有变化而跳过的书籍的数量
+     */
+    public static final LongAdder UNCHANGED_COUNT = new LongAdder();
 
     /**
-     * 失败的文件：key 为文件应该的名称（title），value 为原文件所在路径（文件所在文件夹）
+     * 写入每个文件的复制结果，在 {@link #main(String[])} 中创建
      */
-    public static final Map<String, String> FAIL_MAP = new HashMap<>();
+    private static ReportWriter report;
 
     /**
      * 更改名称后输出的文件存放的路径
@@ -73,295 +181,2075 @@ public class CalibreTool {
     public static final String OUTPUT_PATH = "."
             + File.separator + "books_output" + File.separator;
 
+    /**
+     * 扫描目录和复制文件时的并行度，默认为 CPU 核数，可以使用 {@code --parallelism=N} 修改
+     */
+    public static int parallelism = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * 复制文件的线程数，可以使用 {@code --io-threads=N} 修改
+     */
+    public static int ioThreads = 4;
+
+    /**
+     * 复制文件的方式，可以使用 {@code --copy-strategy=...} 修改
+     */
+    public static CopyStrategy copyStrategy = CopyStrategy.COPY;
+
+    /**
+     * 输出文件的名称，在 {@link #main(String[])} 中创建
+     */
+    private static NamingIndex namingIndex;
+
+    /**
+     * 导出的格式，可以使用 {@code --formats=mobi,epub,...} 修改
+     */
+    public static Set<BookFormat> formats = EnumSet.copyOf(DEFAULT_FORMATS);
+
+    /**
+     * 格式的注册表：导出前需要转换的格式和相应的转换方式，没有注册的格式直接复制
+     */
+    private static final Map<BookFormat, Transform> TRANSFORMS = new EnumMap<>(BookFormat.class);
+
+    /**
+     * 转换文件的线程数，转换需要 CPU，默认为 CPU 核数
+     */
+    public static int transformThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * 导出书籍的流水线，在 {@link #main(String[])} 中创建
+     */
+    private static ExportPipeline pipeline;
+
+    /**
+     * 生成不重复的临时文件名
+     */
+    private static final AtomicLong TEMP_FILE_COUNTER = new AtomicLong();
+
+    /**
+     * 是否在导出之后继续监听书库的变化，可以使用 {@code --watch} 开启
+     */
+    public static boolean watch = false;
+
+    /**
+     * 监听模式下，一本书最后一次变化之后等待的毫秒数，等待期间的变化会合并为一次导出，
+     * 可以使用 {@code --debounce=N} 修改
+     */
+    public static int debounceMillis = 200;
+
+    /**
+     * 是否只处理新增和修改过的书籍，可以使用 {@code --incremental} 开启
+     */
+    public static boolean incremental = false;
+
+    /**
+     * 输出文件的命名模板，可以使用 {@code --name-template=...} 修改。
+     * 支持 {title}、{author}、{series}、{index} 和 {language}，没有的信息会被替换为空字符串
+     */
+    public static String nameTemplate = TITLE_TEMPLATE;
+
+    /**
+     * 增量模式下保存每本书的签名的文件
+     */
+    public static final String INDEX_PATH = "." + File.separator + "calibre_index.txt";
+
+    private static final String INDEX_HEADER = "# calibre index v1";
+
+    /**
+     * 保存每个输出文件属于哪一本书的文件，只有属于同一本书的文件才会被继续使用或覆盖
+     */
+    public static final String NAMES_PATH = "." + File.separator + "calibre_names.txt";
+
+    /**
+     * 上一次执行时保存的签名：key 为书籍目录的路径，value 为签名
+     */
+    private static final Map<String, Long> PREVIOUS_INDEX = new ConcurrentHashMap<>();
+
+    /**
+     * 这一次执行后的签名，只包含所有文件都已经导出的书籍
+     */
+    private static final Map<String, Long> CURRENT_INDEX = new ConcurrentHashMap<>();
+
     public static void main(String[] args) {
+        parseArgs(args);
 
-        listCurrentDirectories()
-                .map(CalibreTool::getDirectoryContainsTargetFile)
-                .filter(Objects::nonNull)
-                .forEach(CalibreTool::copyAndRenameFile);
+        if (incremental) {
+            loadIndex();
+        }
 
-        String messagePath = outputMessageFile();
-        System.out.println("Message has been stored at: " + messagePath);
-    }
+        long timestamp = System.currentTimeMillis();
+        report = ReportWriter.open(new File("." + File.separator + "calibre_report_" + timestamp + ".jsonl"));
+        // 使用 Ctrl+C 结束时，也写入队列中剩余的结果
+        Runtime.getRuntime().addShutdownHook(new Thread(report::close));
+        System.out.println("Report is being written to: " + report.getPath());
+
+        namingIndex = NamingIndex.load(Paths.get(OUTPUT_PATH), Paths.get(NAMES_PATH));
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        pipeline = new ExportPipeline(parallelism, transformThreads, ioThreads);
+        try {
+            // 扫描到的书籍直接交给流水线，正在处理的书籍过多时扫描的线程会等待
+            scanLibrary(pool, new File("."), book -> pipeline.submit(book, false));
+            pool.shutdown();
+            pipeline.awaitCompletion();
 
-    private static void copyAndRenameFile(File targetParentDir) {
-        String title = getTitle(targetParentDir);
-        copyAndRenameFile(targetParentDir, title);
+            namingIndex.save(Paths.get(NAMES_PATH));
+            if (incremental) {
+                saveIndex();
+            }
+
+            String messagePath = outputMessageFile(timestamp);
+            System.out.println("Message has been stored at: " + messagePath);
+
+            if (watch) {
+                watchLibrary(Paths.get("."));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdown();
+            pipeline.close();
+            report.close();
+        }
     }
 
     /**
-     * 根据父路径，查询子路径中包含 {@link #FILE_NAME_WITH_TITLE} 文件的路径
+     * 监听书库的变化，一直运行到程序被结束
      *
-     * @param parentDirectory 父路径
-     * @return 返回包含 {@link #FILE_NAME_WITH_TITLE} 文件的路径，如果没有就返回 null
-     * @see #getDirectoryContainsTargetFileNormal(File)
-     * @see #getDirectoryContainsTargetFileStreamParallel(File)
-     * @see #getDirectoryContainsTargetFileNewDirectoryStream(File)
-     */
-    private static File getDirectoryContainsTargetFile(File parentDirectory) {
-        return walkDirectory(parentDirectory)
-                .filter(Files::isRegularFile)
-                .filter(file -> FILE_NAME_WITH_TITLE.equals(file.getFileName().toString()))
-                .findFirst()
-                .map(Path::getParent)
-                .map(Path::toFile)
-                .orElse(null);
-    }
-
-    private static Stream<Path> walkDirectory(File parentDirectory) {
-        try {
-            return Files.walk(parentDirectory.toPath());
+     * @param root 根目录
+     */
+    private static void watchLibrary(Path root) {
+        Path outputPath = Paths.get(OUTPUT_PATH).toAbsolutePath().normalize();
+        try (LibraryWatcher watcher = new LibraryWatcher(root, outputPath,
+                TimeUnit.MILLISECONDS.toNanos(debounceMillis))) {
+            System.out.println("Watching for changes, press Ctrl+C to stop");
+            watcher.run();
         } catch (IOException e) {
-            e.printStackTrace();
-            throw new RuntimeException("读取文件失败");
+            System.err.println("Fail to watch library: [Reason: " + e.getMessage() + "]");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
     /**
-     * 根据父路径，查询子路径中包含 {@link #FILE_NAME_WITH_TITLE} 文件的路径的初始方法
+     * 解析 {@code --key=value} 形式的命令行参数
      *
-     * @param parentDirectory 父路径
-     * @return 返回包含 {@link #FILE_NAME_WITH_TITLE} 文件的路径，如果没有就返回 null
+     * @param args 命令行参数
      */
-    private static File getDirectoryContainsTargetFileNormal(File parentDirectory) {
-        File[] filesInParentDir = parentDirectory.listFiles();
-        assert filesInParentDir != null;
+    private static void parseArgs(String[] args) {
+        for (String arg : args) {
+            int idx = arg.indexOf('=');
+            String key = idx < 0 ? arg : arg.substring(0, idx);
+            String value = idx < 0 ? "" : arg.substring(idx + 1);
 
-        for (File file : filesInParentDir) {
-            if (file.isDirectory()) {
-                return getDirectoryContainsTargetFileNormal(file);
+            if ("--parallelism".equals(key)) {
+                parallelism = parsePositiveInt(key, value);
+            } else if ("--io-threads".equals(key)) {
+                ioThreads = parsePositiveInt(key, value);
+            } else if ("--copy-strategy".equals(key)) {
+                copyStrategy = CopyStrategy.of(value);
+            } else if ("--transform-threads".equals(key)) {
+                transformThreads = parsePositiveInt(key, value);
+            } else if ("--formats".equals(key)) {
+                formats = BookFormat.parseAll(value);
+            } else if ("--repackage-epub".equals(key)) {
+                if (value.isEmpty() || Boolean.parseBoolean(value)) {
+                    TRANSFORMS.put(BookFormat.EPUB, new EpubRepackager());
+                } else {
+                    TRANSFORMS.remove(BookFormat.EPUB);
+                }
+            } else if ("--name-template".equals(key)) {
+                if (value.trim().isEmpty()) {
+                    throw new IllegalArgumentException(key + " 不能为空");
+                }
+                nameTemplate = value;
+            } else if ("--watch".equals(key)) {
+                watch = value.isEmpty() || Boolean.parseBoolean(value);
+            } else if ("--debounce".equals(key)) {
+                debounceMillis = parsePositiveInt(key, value);
+            } else if ("--incremental".equals(key)) {
+                incremental = value.isEmpty() || Boolean.parseBoolean(value);
+            } else {
+                throw new IllegalArgumentException("未知的参数：" + arg);
             }
+        }
+    }
 
-            if (file.getName().equals(FILE_NAME_WITH_TITLE)) {
-                return file.getParentFile();
+    private static int parsePositiveInt(String key, String value) {
+        try {
+            int n = Integer.parseInt(value);
+            if (n > 0) {
+                return n;
             }
+        } catch (NumberFormatException e) {
+            // 在下面抛出异常
+        }
+        throw new IllegalArgumentException(key + " 需要是正整数：" + value);
+    }
+
+    /**
+     * 导出书籍的第二步：决定是否需要导出，并读取 {@link #FILE_NAME_WITH_TITLE} 文件分配输出文件的名称。
+     * 增量模式下，签名和上一次相同的书籍会直接跳过，不会读取 {@link #FILE_NAME_WITH_TITLE} 文件
+     *
+     * @param book    书籍目录
+     * @param changed 是否是监听模式中发生变化的书籍，这样的书籍总是会导出，并覆盖已经存在的文件
+     * @return 导出计划，不需要导出时返回 null
+     */
+    private static ExportPlan planExport(BookDirectory book, boolean changed) {
+        String key = book.directory.getPath();
+        Long previous = incremental ? PREVIOUS_INDEX.get(key) : null;
+        Long signature = incremental ? getSignature(book) : null;
+
+        if (!changed && previous != null && previous.equals(signature)) {
+            UNCHANGED_COUNT.increment();
+            CURRENT_INDEX.put(key, signature);
+            return null;
         }
 
-        return null;
+        // 之前导出过的书籍被修改了，需要覆盖之前导出的文件
+        boolean replace = changed || previous != null;
+        String title = book.bookFiles.isEmpty() ? "" : namingIndex.reserve(key, book.bookFiles,
+                new NameCandidates(book.directory));
+        return new ExportPlan(book, title, replace, signature);
     }
 
     /**
-     * {@link #getDirectoryContainsTargetFileNormal(File)} 的 Stream API 实现方式。
-     * 缺点就是同一个 {@code parentDirectory} 为了区分 File 和 Directory 做出不同的动作而遍历了 2 次
+     * 导出书籍的最后一步：所有的文件都已经导出后，更新增量模式的签名
      *
-     * @param parentDirectory 父路径
-     * @return 返回包含 {@link #FILE_NAME_WITH_TITLE} 文件的路径，如果没有就返回 null
-     */
-    private static File getDirectoryContainsTargetFileStreamParallel(File parentDirectory) {
-        return listFileToStream(parentDirectory)
-                .parallel()
-                .filter(File::isDirectory)
-                .map(CalibreTool::getDirectoryContainsTargetFileStreamParallel)
-                .filter(Objects::nonNull)
-                .findFirst()
-                .orElseGet(() ->
-                        listFileToStream(parentDirectory)
-                                .filter(File::isFile)
-                                .filter(file -> FILE_NAME_WITH_TITLE.equals(file.getName()))
-                                .findFirst()
-                                .map(File::getParentFile)
-                                .orElse(null)
-                );
-    }
-
-    /**
-     * {@link #getDirectoryContainsTargetFileNormal(File)} 的 {@link Files#newDirectoryStream(Path)} 实现方式。
+     * @param plan     导出计划
+     * @param exported 是否所有的文件都已经导出（复制成功或已经存在）
+     */
+    private static void finishExport(ExportPlan plan, boolean exported) {
+        if (!incremental) {
+            return;
+        }
+        String key = plan.book.directory.getPath();
+        if (exported && plan.signature != null) {
+            CURRENT_INDEX.put(key, plan.signature);
+        } else {
+            CURRENT_INDEX.remove(key);
+        }
+    }
+
+    /**
+     * 一本书的导出计划
+     */
+    private static final class ExportPlan {
+
+        final BookDirectory book;
+
+        /**
+         * 输出文件的名称（不含后缀）
+         */
+        final String title;
+
+        /**
+         * 是否覆盖已经存在的文件
+         */
+        final boolean replace;
+
+        /**
+         * 增量模式下书籍的签名，无法计算时为 null
+         */
+        final Long signature;
+
+        ExportPlan(BookDirectory book, String title, boolean replace, Long signature) {
+            this.book = book;
+            this.title = title;
+            this.replace = replace;
+            this.signature = signature;
+        }
+    }
+
+    /**
+     * 导出书籍的流水线：扫描 → 读取信息 → 转换 → 写入
      * <p>
-     * 需要在处理大型目录结构时提高性能，可以尝试使用java.nio.file.DirectoryStream接口。
-     * 与Files.walk()和Files.find()方法不同，DirectoryStream接口可以在遍历过程中进行并行处理，从而加快处理速度
+     * 扫描使用 {@link ForkJoinPool} ，之后的每一步都有自己的线程池和有界的队列：
+     * 读取信息和分配名称的线程数为 {@link #parallelism} ，转换（例如重新打包 EPUB，需要 CPU）的线程数为 {@link #transformThreads} ，
+     * 写入（需要 I/O）的线程数为 {@link #ioThreads} 。这样转换不会占用复制文件的线程，复制也不会占用转换的线程。
      * <p>
-     * 在这个方法中用到了 StreamSupport.stream()：
-     * StreamSupport.stream()是一个用于将Iterable、Spliterator或Iterator对象转换为流的工具方法。由于Java 8之前的集合框架中没有流的概念，因此可以使用StreamSupport.stream()方法将现有的集合或迭代器转换为流，以便在流中进行操作。
-     * 例如，在使用DirectoryStream接口时，我们需要将其转换为流以便于使用流操作。可以使用StreamSupport.stream()方法将DirectoryStream对象转换为流，并使用流的方法链进行过滤、映射和查找等操作。
-     * StreamSupport.stream()方法接受两个参数：一个用于提供元素的Spliterator对象和一个用于控制是否并行处理的布尔值。在默认情况下，流是顺序处理的，但是可以将第二个参数设置为true来启用并行处理，以加快处理速度。
-     *
-     * @param parentDirectory 父路径
-     * @return 返回包含 {@link #FILE_NAME_WITH_TITLE} 文件的路径，如果没有就返回 null
+     * 下一步的队列满了之后，上一步的线程会等待（背压），正在处理的书籍的数量也有上限，所以内存的占用和书籍的数量无关。
+     * 扫描的线程每找到一本书就调用 {@link #submit}，正在处理的书籍过多时扫描也会等待。
      */
-    private static File getDirectoryContainsTargetFileNewDirectoryStream(File parentDirectory) {
+    private static final class ExportPipeline implements AutoCloseable {
 
-        try (DirectoryStream<Path> dir = Files.newDirectoryStream(parentDirectory.toPath())) {
-            return StreamSupport.stream(dir.spliterator(), true)
-                    .filter(Files::isRegularFile)
-                    .filter(file -> file.getFileName().toString().equals(FILE_NAME_WITH_TITLE))
-                    .findFirst()
-                    .map(Path::getParent)
-                    .map(Path::toFile)
-                    .orElseGet(() -> {
-                        try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(parentDirectory.toPath())) {
-                            return StreamSupport.stream(dirStream.spliterator(), true)
-                                    .filter(Files::isDirectory)
-                                    .map(directory -> getDirectoryContainsTargetFileNewDirectoryStream(
-                                            directory.toFile()))
-                                    .filter(Objects::nonNull)
-                                    .findFirst()
-                                    .orElse(null);
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                            throw new RuntimeException("读取文件失败");
+        private final ThreadPoolExecutor metadataPool;
+
+        private final ThreadPoolExecutor transformPool;
+
+        private final ThreadPoolExecutor writePool;
+
+        private final int maxInFlight;
+
+        /**
+         * 正在处理的书籍的数量的上限
+         */
+        private final Semaphore inFlight;
+
+        ExportPipeline(int metadataThreads, int transformThreads, int writeThreads) {
+            this.metadataPool = createStagePool("calibre-metadata", metadataThreads);
+            this.transformPool = createStagePool("calibre-transform", transformThreads);
+            this.writePool = createStagePool("calibre-write", writeThreads);
+            this.maxInFlight = 4 * (metadataThreads + transformThreads + writeThreads);
+            this.inFlight = new Semaphore(maxInFlight);
+        }
+
+        /**
+         * 创建流水线中一步的线程池。队列满了之后，提交任务的线程会等待队列中有空位
+         *
+         * @param name    线程名称的前缀
+         * @param threads 线程数
+         */
+        private static ThreadPoolExecutor createStagePool(String name, int threads) {
+            AtomicInteger counter = new AtomicInteger();
+            return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(threads * 4),
+                    r -> {
+                        Thread thread = new Thread(r, name + "-" + counter.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    },
+                    (r, executor) -> {
+                        if (executor.isShutdown()) {
+                            throw new RejectedExecutionException(name + " 已经关闭");
+                        }
+                        try {
+                            executor.getQueue().put(r);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new RejectedExecutionException(e);
                         }
                     });
-        } catch (IOException e) {
-            e.printStackTrace();
-            throw new RuntimeException("读取文件失败");
         }
-    }
 
-    /**
-     * 输出执行信息
-     *
-     * @return 保存了执行信息的文件的路径
-     */
-    private static String outputMessageFile() {
-        String fileName = "." + File.separator + "calibre_msg_"
-                + System.currentTimeMillis() + ".txt";
-        File file = new File(fileName);
+        /**
+         * 提交一本书，正在处理的书籍过多时等待
+         *
+         * @param book    书籍目录
+         * @param changed 是否是监听模式中发生变化的书籍
+         */
+        void submit(BookDirectory book, boolean changed) throws InterruptedException {
+            inFlight.acquire();
+            CompletableFuture.supplyAsync(() -> planExport(book, changed), metadataPool)
+                    .thenCompose(this::exportFiles)
+                    .whenComplete((result, e) -> {
+                        if (e != null) {
+                            Throwable cause = e instanceof CompletionException && e.getCause() != null
+                                    ? e.getCause() : e;
+                            System.err.println("Fail: [Directory: " + book.directory.getPath()
+                                    + "], [Reason: " + cause + "]");
+                        } else if (changed) {
+                            System.out.println("Exported: " + book.directory.getPath());
+                        }
+                        inFlight.release();
+                    });
+        }
 
-        try (FileOutputStream fos = new FileOutputStream(file);
-             OutputStreamWriter osw = new OutputStreamWriter(fos, StandardCharsets.UTF_8);
-             PrintWriter pw = new PrintWriter(osw)) {
+        /**
+         * 转换和写入一本书的所有文件
+         */
+        private CompletableFuture<Void> exportFiles(ExportPlan plan) {
+            if (plan == null) {
+                return CompletableFuture.completedFuture(null);
+            }
 
-            pw.println("Success：" + successCount);
-            pw.println("Failure: " + failCount);
-            pw.println("Already exists: " + existCount);
-            pw.println("===============================================");
+            List<CompletableFuture<Outcome>> futures = new ArrayList<>(plan.book.bookFiles.size());
+            for (BookFile bookFile : plan.book.bookFiles) {
+                File file = bookFile.file;
+                File target = getOutputFile(plan.title, file);
+                Transform transform = TRANSFORMS.get(BookFormat.ofFile(file));
+                if (transform == null) {
+                    futures.add(CompletableFuture.supplyAsync(
+                            () -> copyFile(bookFile, target, plan.replace), writePool));
+                } else {
+                    futures.add(CompletableFuture
+                            .supplyAsync(() -> transformFile(transform, file, target, plan.replace), transformPool)
+                            .thenApplyAsync(staged -> installFile(file, staged, target, plan.replace), writePool));
+                }
+            }
 
-            FAIL_MAP.forEach((k, v) -> {
-                pw.println(k);
-                pw.println(v);
-                pw.println("----------------------------------------------");
-            });
-            pw.println("===============================================");
-        } catch (IOException e) {
-            e.printStackTrace();
+            return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+                    .thenRun(() -> finishExport(plan, futures.stream()
+                            .allMatch(future -> future.join() != Outcome.FAILURE)));
         }
 
-        return getCanonicalPath(file);
+        /**
+         * 等待所有已经提交的书籍导出完成
+         */
+        void awaitCompletion() throws InterruptedException {
+            inFlight.acquire(maxInFlight);
+            inFlight.release(maxInFlight);
+        }
+
+        @Override
+        public void close() {
+            metadataPool.shutdown();
+            transformPool.shutdown();
+            writePool.shutdown();
+        }
     }
 
-    private static void copyAndRenameFile(File directory, String title) {
-        listFileToStream(directory)
-                .filter(CalibreTool::checkIfFilenameEndsWithBookSuffix)
-                .forEach(file -> getOutputFileAndCopyFile(title, file));
+    /**
+     * 根据 {@link #FILE_NAME_WITH_TITLE} 文件和相应后缀的文件的名称、修改时间和大小计算书籍的签名
+     * <p>
+     * 修改时间和大小使用扫描时读取的属性，不会再次读取文件的属性
+     *
+     * @param book 书籍目录
+     * @return 签名，任意一个文件、命名模板或转换方式发生变化时签名都会改变
+     */
+    private static long getSignature(BookDirectory book) {
+        List<BookFile> files = new ArrayList<>(book.bookFiles);
+        files.add(book.metadataFile);
+        files.sort(Comparator.comparing(bookFile -> bookFile.file.getName()));
+
+        // FNV-1a
+        long hash = mix(0xcbf29ce484222325L, nameTemplate.hashCode());
+        hash = mix(hash, TRANSFORMS.keySet().toString().hashCode());
+        for (BookFile bookFile : files) {
+            hash = mix(hash, bookFile.file.getName().hashCode());
+            hash = mix(hash, bookFile.lastModified);
+            hash = mix(hash, bookFile.size);
+        }
+        return hash;
     }
 
-    private static boolean checkIfFilenameEndsWithBookSuffix(File file) {
-        String name = file.getName();
-        return BOOK_SUFFIXES.stream().anyMatch(name::endsWith);
+    private static long mix(long hash, long value) {
+        for (int i = 0; i < Long.BYTES; i++) {
+            hash ^= (value >>> (i * 8)) & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
     }
 
-    private static void getOutputFileAndCopyFile(String title, File file) {
-        File outputFile = getOutputFile(title, file);
-        copyFile(file, outputFile);
+    /**
+     * 读取 {@link #INDEX_PATH} 中上一次执行时保存的签名，文件不存在时所有的书籍都会被导出
+     */
+    private static void loadIndex() {
+        Path path = Paths.get(INDEX_PATH);
+        if (!Files.exists(path)) {
+            return;
+        }
+
+        try (Stream<String> lines = Files.lines(path, StandardCharsets.UTF_8)) {
+            lines.filter(line -> !line.startsWith("#"))
+                    .forEach(line -> {
+                        // 每一行是 "签名<Tab>路径"
+                        int idx = line.indexOf('\t');
+                        if (idx > 0) {
+                            PREVIOUS_INDEX.put(line.substring(idx + 1),
+                                    Long.parseUnsignedLong(line.substring(0, idx), 16));
+                        }
+                    });
+        } catch (IOException | NumberFormatException e) {
+            PREVIOUS_INDEX.clear();
+            System.err.println("Fail to read index, all books will be exported: [Reason: " + e.getMessage() + "]");
+        }
     }
 
-    private static File getOutputFile(String title, File file) {
-        int index = file.getName().lastIndexOf(".");
-        String suffix = file.getName().substring(index);
+    /**
+     * 将这一次执行后的签名写入 {@link #INDEX_PATH}。先写入临时文件再替换，避免中途退出时损坏原来的文件
+     */
+    private static void saveIndex() {
+        Path path = Paths.get(INDEX_PATH);
+        Path temp = Paths.get(INDEX_PATH + ".tmp");
 
-        String name = title + suffix;
-        String pathname = OUTPUT_PATH + name;
+        List<String> keys = new ArrayList<>(CURRENT_INDEX.keySet());
+        keys.sort(Comparator.naturalOrder());
+
+        try (PrintWriter pw = new PrintWriter(Files.newBufferedWriter(temp, StandardCharsets.UTF_8))) {
+            pw.println(INDEX_HEADER);
+            keys.forEach(key -> pw.println(Long.toHexString(CURRENT_INDEX.get(key)) + "\t" + key));
+        } catch (IOException e) {
+            System.err.println("Fail to write index: [Reason: " + e.getMessage() + "]");
+            return;
+        }
 
-        File outputFile = new File(pathname);
-        File parentFile = outputFile.getParentFile();
         try {
-            Files.createDirectories(parentFile.toPath());
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
         } catch (IOException e) {
-            throw new RuntimeException("创建目录失败");
+            System.err.println("Fail to write index: [Reason: " + e.getMessage() + "]");
         }
-        return outputFile;
     }
 
-    private static void copyFile(File source, File target) {
+    /**
+     * 并行扫描 {@code root} 下所有的目录，查找含有 {@link #FILE_NAME_WITH_TITLE} 文件的目录。
+     * <p>
+     * 使用 {@link Files#walkFileTree} 遍历，每个文件的属性只读取一次，并保存在 {@link BookFile} 中。
+     * 空闲的线程较多时，子目录作为新的任务交给 {@link ForkJoinPool}，空闲的线程会从其他线程的队列中窃取任务。
+     * 输出文件的路径 {@link #OUTPUT_PATH} 不会被扫描。
+     * <p>
+     * 扫描会跟随符号链接。交给新任务的子目录会重新开始一次 {@link Files#walkFileTree}，
+     * 新的遍历不知道上层的目录，无法发现符号链接形成的循环，所以所有的任务共用一个已经扫描过的目录的集合，
+     * 同一个目录（例如通过多个符号链接到达的目录）只扫描一次。
+     * <p>
+     * 每找到一本书就交给 {@code sink}，不会保存所有的书籍，所以内存的占用和书籍的数量无关。
+     * 书籍的顺序和线程的调度有关，每次执行时可能不同。
+     *
+     * @param pool 执行扫描的线程池
+     * @param root 根目录
+     * @param sink 接收书籍目录，可以等待（背压）
+     */
+    static void scanLibrary(ForkJoinPool pool, File root, BookSink sink) {
+        Path outputPath = Paths.get(OUTPUT_PATH).toAbsolutePath().normalize();
+        Set<Object> visited = ConcurrentHashMap.newKeySet();
         try {
-            Files.copy(source.toPath(), target.toPath());
-            successCount++;
-        } catch (InvalidPathException e) {
-            failCount++;
-            saveFailMessage(source, target);
-            String reason = e.getMessage();
-            System.err.println("File name contains invalid characters: [Source: "
-                    + getCanonicalPath(source) + "], [Target: "
-                    + target.getName() + "], [Reason: " + reason + "]");
+            visited.add(getDirectoryKey(root.toPath(),
+                    Files.readAttributes(root.toPath(), BasicFileAttributes.class)));
         } catch (IOException e) {
-            saveFailMessage(source, target);
-            if (e instanceof FileAlreadyExistsException) {
-                existCount++;
-                System.out.println(target.getName() + " already exists");
-                return;
-            }
-
-            failCount++;
-            System.err.println("Fail: [Source: "
-                    + source.getName() + ", [Target: " + target.getName() + "]"
-                    + ", [Reason: " + e.getMessage() + "]");
+            ScanTask.printFailure(root.toPath(), e);
+            return;
         }
+        pool.invoke(new ScanTask(root.toPath(), outputPath, visited, sink));
     }
 
-    private static String getCanonicalPath(File file) {
+    /**
+     * @return 用于判断两个路径是否是同一个目录的标识：文件系统提供的 {@link BasicFileAttributes#fileKey()}
+     * （例如 Linux 中的设备号和 inode），没有时使用真实路径
+     */
+    private static Object getDirectoryKey(Path dir, BasicFileAttributes attributes) {
+        Object key = attributes.fileKey();
+        if (key != null) {
+            return key;
+        }
         try {
-            return file.getCanonicalPath();
+            return dir.toRealPath();
         } catch (IOException e) {
-            throw new RuntimeException("读取文件失败");
+            return dir.toAbsolutePath().normalize();
         }
     }
 
-    private static void saveFailMessage(File source, File target) {
-        String name = target.getName();
-        int idx = name.lastIndexOf(".");
-        String title = name.substring(0, idx);
+    /**
+     * 接收扫描到的书籍目录
+     */
+    @FunctionalInterface
+    interface BookSink {
+        void accept(BookDirectory book) throws InterruptedException;
+    }
+
+    /**
+     * 含有 {@link #FILE_NAME_WITH_TITLE} 文件的目录，以及该目录中相应后缀的文件
+     */
+    static final class BookDirectory {
+
+        final File directory;
 
-        File parentFile = source.getParentFile();
-        String directory = getCanonicalPath(parentFile);
+        final BookFile metadataFile;
 
-        FAIL_MAP.put(title, directory);
+        final List<BookFile> bookFiles;
+
+        BookDirectory(File directory, BookFile metadataFile, List<BookFile> bookFiles) {
+            this.directory = directory;
+            this.metadataFile = metadataFile;
+            this.bookFiles = bookFiles;
+        }
     }
 
     /**
-     * 示范 {@link java.nio.channels.FileChannel} 的用法
-     *
-     * @param source 原文件
-     * @param target 目标文件
+     * 文件和扫描时读取的属性
+     * <p>
+     * 扫描时每个文件只读取一次属性，之后计算签名、分配文件名和记录复制的大小都使用这里的值
      */
-    private static void copyFileWithChannel(File source, File target) {
-        try (FileInputStream fis = new FileInputStream(source);
-             FileChannel inputChannel = fis.getChannel();
-             FileOutputStream fos = new FileOutputStream(target);
-             FileChannel outputChannel = fos.getChannel()) {
+    private static final class BookFile {
 
-            outputChannel.transferFrom(inputChannel, 0, inputChannel.size());
-            successCount++;
-        } catch (IOException e) {
-            failCount++;
-            saveFailMessage(source, target);
-            System.err.println("Fail: [Source: "
-                    + source.getName() + ", [Target: " + target.getName() + "]"
-                    + ", [Reason: " + e.getMessage() + "]");
+        final File file;
+
+        final long size;
+
+        final long lastModified;
+
+        BookFile(Path path, BasicFileAttributes attributes) {
+            this.file = path.toFile();
+            this.size = attributes.size();
+            this.lastModified = attributes.lastModifiedTime().toMillis();
         }
     }
 
-    private static Stream<File> listFileToStream(File file) {
-        try {
-            return Files.list(file.toPath())
-                    .map(Path::toFile);
-        } catch (IOException e) {
-            throw new RuntimeException("读取文件失败");
+    /**
+     * 遍历目录时逐个加入其中的文件，最后创建 {@link BookDirectory}
+     */
+    private static final class BookDirectoryBuilder {
+
+        private final Path directory;
+
+        private final List<BookFile> bookFiles = new ArrayList<>();
+
+        private BookFile metadataFile;
+
+        BookDirectoryBuilder(Path directory) {
+            this.directory = directory;
+        }
+
+        void add(Path path, BasicFileAttributes attributes) {
+            if (!attributes.isRegularFile()) {
+                return;
+            }
+            File file = path.toFile();
+            if (FILE_NAME_WITH_TITLE.equals(file.getName())) {
+                metadataFile = new BookFile(path, attributes);
+            } else if (checkIfFilenameEndsWithBookSuffix(file)) {
+                bookFiles.add(new BookFile(path, attributes));
+            }
+        }
+
+        /**
+         * @return 书籍目录，不含有 {@link #FILE_NAME_WITH_TITLE} 文件时返回 null
+         */
+        BookDirectory build() {
+            return metadataFile == null ? null : new BookDirectory(directory.toFile(), metadataFile, bookFiles);
         }
     }
 
-    private static Stream<File> listCurrentDirectories() {
-        return listFileToStream(new File("."))
-                .filter(File::isDirectory);
+    /**
+     * 读取一个目录中的 {@link #FILE_NAME_WITH_TITLE} 文件和相应后缀的文件，不读取子目录
+     *
+     * @param directory 目录
+     * @return 书籍目录，不含有 {@link #FILE_NAME_WITH_TITLE} 文件时返回 null
+     * @throws IOException 读取目录失败
+     */
+    private static BookDirectory readBookDirectory(Path directory) throws IOException {
+        BookDirectoryBuilder builder = new BookDirectoryBuilder(directory);
+        Files.walkFileTree(directory, EnumSet.of(FileVisitOption.FOLLOW_LINKS), 1, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                builder.add(file, attributes);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return builder.build();
     }
 
+    /**
+     * 使用 {@link WatchService} 监听书库中所有的目录。
+     * <p>
+     * {@link #FILE_NAME_WITH_TITLE} 或相应后缀的文件发生变化时，记录所在的目录；
+     * 一个目录在 {@link #debounceMillis} 内没有新的变化后，才重新导出这个目录中的书籍，
+     * 这样 Calibre 一次修改产生的多个事件只会导出一次。没有变化时线程阻塞在 {@link WatchService#take()} 上，不占用 CPU。
+     */
+    private static final class LibraryWatcher implements AutoCloseable {
+
+        private final WatchService watchService;
+
+        private final Path root;
+
+        private final Path outputPath;
+
+        private final long debounceNanos;
+
+        private final Map<WatchKey, Path> directories = new HashMap<>();
+
+        /**
+         * 等待导出的目录：key 为目录，value 为可以导出的时间（{@link System#nanoTime()}）
+         */
+        private final Map<Path, Long> pending = new LinkedHashMap<>();
+
+        LibraryWatcher(Path root, Path outputPath, long debounceNanos) throws IOException {
+            this.watchService = FileSystems.getDefault().newWatchService();
+            this.root = root;
+            this.outputPath = outputPath;
+            this.debounceNanos = debounceNanos;
+            registerAll(root, false);
+        }
+
+        void run() throws InterruptedException {
+            while (true) {
+                WatchKey key;
+                if (pending.isEmpty()) {
+                    key = watchService.take();
+                } else {
+                    long wait = pending.values().stream().min(Long::compare).orElse(0L) - System.nanoTime();
+                    key = watchService.poll(Math.max(0, wait), TimeUnit.NANOSECONDS);
+                }
+
+                if (key != null) {
+                    handleEvents(key);
+                }
+                exportDueDirectories();
+            }
+        }
+
+        private void handleEvents(WatchKey key) {
+            Path directory = directories.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    // 丢失了部分事件，重新检查所有的目录
+                    System.err.println("Too many changes, rescanning library");
+                    registerAll(root, true);
+                    continue;
+                }
+                if (directory == null) {
+                    continue;
+                }
+
+                Path child = directory.resolve((Path) event.context());
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(child)) {
+                    // 新的目录中可能已经有文件了
+                    registerAll(child, true);
+                    continue;
+                }
+
+                File file = child.toFile();
+                if (FILE_NAME_WITH_TITLE.equals(file.getName()) || checkIfFilenameEndsWithBookSuffix(file)) {
+                    schedule(directory);
+                }
+            }
+
+            if (!key.reset()) {
+                // 目录已经被删除
+                directories.remove(key);
+            }
+        }
+
+        private void schedule(Path directory) {
+            // 重新放入，保证按照最后一次变化的顺序导出
+            pending.remove(directory);
+            pending.put(directory, System.nanoTime() + debounceNanos);
+        }
+
+        private void exportDueDirectories() {
+            long now = System.nanoTime();
+            boolean exported = false;
+            for (Iterator<Map.Entry<Path, Long>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<Path, Long> entry = it.next();
+                if (entry.getValue() - now > 0) {
+                    continue;
+                }
+                it.remove();
+                exported |= export(entry.getKey());
+            }
+
+            if (!exported) {
+                return;
+            }
+            try {
+                pipeline.awaitCompletion();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            namingIndex.save(Paths.get(NAMES_PATH));
+            if (incremental) {
+                saveIndex();
+            }
+        }
+
+        /**
+         * @return 是否导出了书籍
+         */
+        private boolean export(Path directory) {
+            BookDirectory book;
+            try {
+                book = readBookDirectory(directory);
+            } catch (IOException e) {
+                // 目录已经被删除
+                return false;
+            }
+            if (book == null) {
+                return false;
+            }
+            try {
+                pipeline.submit(book, true);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * 监听 {@code start} 和其中所有的子目录，{@link #outputPath} 除外
+         * <p>
+         * 某个目录无法监听时（例如超过了 Linux 的 {@code fs.inotify.max_user_watches}），继续监听其他的目录，
+         * 最后输出无法监听的目录，这些目录中的变化不会被导出
+         *
+         * @param start    开始的目录
+         * @param schedule 是否导出其中的书籍，用于新创建的目录
+         */
+        private void registerAll(Path start, boolean schedule) {
+            // 无法监听的目录和原因
+            Map<Path, IOException> unwatched = new LinkedHashMap<>();
+            try {
+                Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                        if (outputPath.equals(dir.toAbsolutePath().normalize())) {
+                            return FileVisitResult.SKIP_SUBTREE;
+                        }
+                        try {
+                            // 已经监听的目录会返回同一个 WatchKey
+                            WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                            directories.put(key, dir);
+                        } catch (IOException e) {
+                            // 子目录可能仍然可以监听
+                            unwatched.put(dir, e);
+                        }
+                        if (schedule && Files.exists(dir.resolve(FILE_NAME_WITH_TITLE))) {
+                            LibraryWatcher.this.schedule(dir);
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException e) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } catch (IOException e) {
+                System.err.println("Fail to watch directory: [Directory: " + start
+                        + "], [Reason: " + e.getMessage() + "]");
+            }
+
+            if (!unwatched.isEmpty()) {
+                System.err.println("Warning: " + unwatched.size() + " directories are not watched, "
+                        + "changes in them will not be exported: [Directories: "
+                        + unwatched.keySet().stream().limit(10).map(Path::toString).collect(Collectors.joining(", "))
+                        + (unwatched.size() > 10 ? ", ..." : "") + "], [Reason: "
+                        + unwatched.values().iterator().next() + "]");
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            watchService.close();
+        }
+    }
+
+    /**
+     * 复制的结果
+     */
+    private enum Outcome {
+        /**
+         * 复制成功
+         */
+        SUCCESS,
+        /**
+         * 复制失败
+         */
+        FAILURE,
+        /**
+         * 目标文件已经存在
+         */
+        EXISTS
+    }
+
+    /**
+     * 一个文件的复制结果
+     */
+    private static final class CopyResult {
+
+        final File source;
+
+        final File target;
+
+        final Outcome outcome;
+
+        /**
+         * 复制的字节数，没有复制成功时为 0
+         */
+        final long bytes;
+
+        final long durationNanos;
+
+        /**
+         * 失败的原因，成功时为 null
+         */
+        final String reason;
+
+        CopyResult(File source, File target, Outcome outcome, long bytes, long durationNanos, String reason) {
+            this.source = source;
+            this.target = target;
+            this.outcome = outcome;
+            this.bytes = bytes;
+            this.durationNanos = durationNanos;
+            this.reason = reason;
+        }
+
+        String toJson() {
+            return "{\"source\":" + quote(getCanonicalPath(source))
+                    + ",\"target\":" + quote(target.getPath())
+                    + ",\"outcome\":" + quote(outcome.name())
+                    + ",\"bytes\":" + bytes
+                    + ",\"durationMillis\":" + String.format(Locale.ROOT, "%.3f", durationNanos / 1e6)
+                    + ",\"reason\":" + (reason == null ? "null" : quote(reason))
+                    + "}";
+        }
+    }
+
+    /**
+     * 转换为 JSON 字符串
+     */
+    private static String quote(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * 记录一个文件的复制结果
+     *
+     * @param startNanos 开始复制时的 {@link System#nanoTime()}
+     */
+    private static void record(File source, File target, Outcome outcome, long bytes,
+                               long startNanos, String reason) {
+        switch (outcome) {
+            case SUCCESS:
+                SUCCESS_COUNT.increment();
+                COPIED_BYTES.add(bytes);
+                break;
+            case EXISTS:
+                EXIST_COUNT.increment();
+                break;
+            default:
+                FAIL_COUNT.increment();
+        }
+        report.append(new CopyResult(source, target, outcome, bytes, System.nanoTime() - startNanos, reason));
+    }
+
+    /**
+     * 在后台线程中把复制结果写入报告，每行一个 JSON 对象
+     * <p>
+     * 复制线程只把结果放入有界的队列中，队列满了之后会等待，所以内存的占用和书籍的数量无关。
+     * 后台线程每次取出队列中所有的结果，一起写入后 flush，程序中途退出时，报告中也保存了已经完成的结果。
+     */
+    private static final class ReportWriter implements Closeable {
+
+        private static final int CAPACITY = 1024;
+
+        private static final int BATCH_SIZE = 256;
+
+        /**
+         * 队列结束的标记
+         */
+        private static final String END = new String("END");
+
+        private final BlockingQueue<String> queue = new ArrayBlockingQueue<>(CAPACITY);
+
+        private final File file;
+
+        private final Writer writer;
+
+        private final Thread thread;
+
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private ReportWriter(File file, Writer writer) {
+            this.file = file;
+            this.writer = writer;
+            this.thread = new Thread(this::run, "calibre-report");
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        static ReportWriter open(File file) {
+            try {
+                Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                return new ReportWriter(file, writer);
+            } catch (IOException e) {
+                throw new RuntimeException("创建报告失败");
+            }
+        }
+
+        String getPath() {
+            return getCanonicalPath(file);
+        }
+
+        void append(CopyResult result) {
+            try {
+                queue.put(result.toJson());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void run() {
+            List<String> batch = new ArrayList<>(BATCH_SIZE);
+            try {
+                while (true) {
+                    batch.add(queue.take());
+                    queue.drainTo(batch, BATCH_SIZE - 1);
+                    boolean end = write(batch);
+                    batch.clear();
+                    if (end) {
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                // 被强制关闭
+            }
+        }
+
+        /**
+         * @return 是否遇到了结束标记
+         */
+        private boolean write(List<String> batch) {
+            StringBuilder sb = new StringBuilder();
+            boolean end = false;
+            for (String line : batch) {
+                if (line == END) {
+                    end = true;
+                    break;
+                }
+                sb.append(line).append('\n');
+            }
+
+            try {
+                writer.write(sb.toString());
+                writer.flush();
+            } catch (IOException e) {
+                System.err.println("Fail to write report: [Reason: " + e.getMessage() + "]");
+            }
+            return end;
+        }
+
+        /**
+         * 写入队列中剩余的结果后关闭文件，可以多次调用
+         */
+        @Override
+        public void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                queue.put(END);
+                thread.join();
+            } catch (InterruptedException e) {
+                thread.interrupt();
+                Thread.currentThread().interrupt();
+            } finally {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    System.err.println("Fail to write report: [Reason: " + e.getMessage() + "]");
+                }
+            }
+        }
+    }
+
+    /**
+     * 扫描一个目录及其子目录，需要时为子目录创建新的任务
+     */
+    private static final class ScanTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * 队列中等待窃取的任务少于这个数量时，才把子目录交给新的任务
+         */
+        private static final int SURPLUS_TASKS = 2;
+
+        private final Path directory;
+
+        private final Path outputPath;
+
+        /**
+         * 所有任务已经扫描过的目录，见 {@link #getDirectoryKey}
+         */
+        private final Set<Object> visited;
+
+        private final BookSink sink;
+
+        /**
+         * @param directory 需要扫描的目录，已经记录在 {@code visited} 中
+         */
+        ScanTask(Path directory, Path outputPath, Set<Object> visited, BookSink sink) {
+            this.directory = directory;
+            this.outputPath = outputPath;
+            this.visited = visited;
+            this.sink = sink;
+        }
+
+        @Override
+        protected void compute() {
+            List<ScanTask> subTasks = new ArrayList<>();
+            try {
+                Files.walkFileTree(directory, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE,
+                        new ScanVisitor(subTasks));
+            } catch (IOException e) {
+                printFailure(directory, e);
+            }
+            for (ScanTask subTask : subTasks) {
+                subTask.join();
+            }
+        }
+
+        private static void printFailure(Path directory, IOException e) {
+            System.err.println("Fail to read directory: [Directory: " + directory
+                    + "], [Reason: " + e.getMessage() + "]");
+        }
+
+        /**
+         * 遍历这个任务的目录
+         * <p>
+         * 遍历时每个文件和目录的属性只读取一次，并直接传给 {@link #visitFile} 和 {@link #preVisitDirectory}。
+         * 线程池的队列中等待窃取的任务不多时，把子目录交给新的任务，否则在当前线程中继续遍历，
+         * 这样只有交给新任务的子目录的属性会被再读取一次。
+         */
+        private final class ScanVisitor extends SimpleFileVisitor<Path> {
+
+            /**
+             * 正在遍历的目录，栈顶为当前的目录
+             */
+            private final Deque<BookDirectoryBuilder> builders = new ArrayDeque<>();
+
+            private final List<ScanTask> subTasks;
+
+            ScanVisitor(List<ScanTask> subTasks) {
+                this.subTasks = subTasks;
+            }
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+                if (!builders.isEmpty()) {
+                    if (outputPath.equals(dir.toAbsolutePath().normalize())) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    // 已经通过其他路径（符号链接）扫描过的目录，包括符号链接形成的循环
+                    if (!visited.add(getDirectoryKey(dir, attributes))) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    if (getSurplusQueuedTaskCount() < SURPLUS_TASKS) {
+                        ScanTask subTask = new ScanTask(dir, outputPath, visited, sink);
+                        subTask.fork();
+                        subTasks.add(subTask);
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                }
+                builders.push(new BookDirectoryBuilder(dir));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                builders.element().add(file, attributes);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                // 指向当前任务正在遍历的上级目录的符号链接，这个目录已经在扫描，不是错误
+                if (!(e instanceof FileSystemLoopException)) {
+                    printFailure(file, e);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) {
+                BookDirectoryBuilder builder = builders.pop();
+                if (e != null) {
+                    printFailure(dir, e);
+                    return FileVisitResult.CONTINUE;
+                }
+                BookDirectory book = builder.build();
+                if (book == null) {
+                    return FileVisitResult.CONTINUE;
+                }
+                try {
+                    sink.accept(book);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return FileVisitResult.TERMINATE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        }
+    }
+
+    /**
+     * 输出执行信息
+     *
+     * @param timestamp 文件名中的时间戳
+     * @return 保存了执行信息的文件的路径
+     */
+    private static String outputMessageFile(long timestamp) {
+        String fileName = "." + File.separator + "calibre_msg_"
+                + timestamp + ".txt";
+        File file = new File(fileName);
+
+        try (FileOutputStream fos = new FileOutputStream(file);
+             OutputStreamWriter osw = new OutputStreamWriter(fos, StandardCharsets.UTF_8);
+             PrintWriter pw = new PrintWriter(osw)) {
+
+            pw.println("Success：" + SUCCESS_COUNT.sum());
+            pw.println("Failure: " + FAIL_COUNT.sum());
+            pw.println("Already exists: " + EXIST_COUNT.sum());
+            if (incremental) {
+                pw.println("Unchanged books: " + UNCHANGED_COUNT.sum());
+            }
+            pw.println("Copied: " + String.format("%.1f MB", COPIED_BYTES.sum() / 1024.0 / 1024.0));
+            pw.println("===============================================");
+            // 失败和已经存在的文件的详细信息在报告中，不再保存在内存中
+            pw.println("Details: " + report.getPath());
+            pw.println("===============================================");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        return getCanonicalPath(file);
+    }
+
+    private static boolean checkIfFilenameEndsWithBookSuffix(File file) {
+        BookFormat format = BookFormat.ofFile(file);
+        return format != null && formats.contains(format);
+    }
+
+    private static File getOutputFile(String title, File file) {
+        String name = title + getSuffix(file);
+        String pathname = OUTPUT_PATH + name;
+        return new File(pathname);
+    }
+
+    private static String getSuffix(File file) {
+        int index = file.getName().lastIndexOf(".");
+        return file.getName().substring(index);
+    }
+
+    /**
+     * @param source  原文件，复制的大小使用扫描时读取的属性
+     * @param replace 是否覆盖已经存在的文件
+     * @return 复制的结果
+     */
+    private static Outcome copyFile(BookFile source, File target, boolean replace) {
+        long startNanos = System.nanoTime();
+        try {
+            Path targetPath = target.toPath();
+            if (!replace && Files.exists(targetPath)) {
+                throw new FileAlreadyExistsException(target.getPath());
+            }
+            copyFileAtomically(source.file.toPath(), targetPath, replace);
+            record(source.file, target, Outcome.SUCCESS, source.size, startNanos, null);
+            return Outcome.SUCCESS;
+        } catch (IOException e) {
+            return recordFailure(source.file, target, startNanos, e);
+        }
+    }
+
+    private static Outcome recordFailure(File source, File target, long startNanos, IOException e) {
+        if (e instanceof FileAlreadyExistsException) {
+            record(source, target, Outcome.EXISTS, 0, startNanos, "already exists");
+            System.out.println(target.getName() + " already exists");
+            return Outcome.EXISTS;
+        }
+
+        record(source, target, Outcome.FAILURE, 0, startNanos, e.getMessage());
+        System.err.println("Fail: [Source: "
+                + source.getName() + ", [Target: " + target.getName() + "]"
+                + ", [Reason: " + e.getMessage() + "]");
+        return Outcome.FAILURE;
+    }
+
+    /**
+     * 流水线中的转换：把转换后的文件写入同一个目录中的临时文件
+     *
+     * @return 转换后的临时文件，目标文件已经存在或者转换失败时只有结果
+     */
+    private static StagedFile transformFile(Transform transform, File source, File target, boolean replace) {
+        long startNanos = System.nanoTime();
+        Path temp = getTempFile(target.toPath());
+        try {
+            if (!replace && Files.exists(target.toPath())) {
+                throw new FileAlreadyExistsException(target.getPath());
+            }
+            transform.transform(source.toPath(), temp);
+            return new StagedFile(temp, null, startNanos);
+        } catch (IOException e) {
+            deleteQuietly(temp);
+            return new StagedFile(null, recordFailure(source, target, startNanos, e), startNanos);
+        }
+    }
+
+    /**
+     * 流水线中的写入：把转换后的临时文件重命名为目标文件
+     */
+    private static Outcome installFile(File source, StagedFile staged, File target, boolean replace) {
+        if (staged.temp == null) {
+            return staged.outcome;
+        }
+        try {
+            long bytes = Files.size(staged.temp);
+            moveIntoPlace(staged.temp, target.toPath(), replace);
+            record(source, target, Outcome.SUCCESS, bytes, staged.startNanos, null);
+            return Outcome.SUCCESS;
+        } catch (IOException e) {
+            return recordFailure(source, target, staged.startNanos, e);
+        } finally {
+            deleteQuietly(staged.temp);
+        }
+    }
+
+    /**
+     * 转换后的临时文件
+     */
+    private static final class StagedFile {
+
+        /**
+         * 临时文件，转换失败时为 null
+         */
+        final Path temp;
+
+        /**
+         * 转换失败时的结果
+         */
+        final Outcome outcome;
+
+        final long startNanos;
+
+        StagedFile(Path temp, Outcome outcome, long startNanos) {
+            this.temp = temp;
+            this.outcome = outcome;
+            this.startNanos = startNanos;
+        }
+    }
+
+    private static String getCanonicalPath(File file) {
+        try {
+            return file.getCanonicalPath();
+        } catch (IOException e) {
+            throw new RuntimeException("读取文件失败");
+        }
+    }
+
+    /**
+     * 先使用 {@link #copyStrategy} 复制到同一个目录中的临时文件，再重命名为目标文件，
+     * 中途失败时不会留下不完整的目标文件
+     *
+     * @param source  原文件
+     * @param target  目标文件
+     * @param replace 是否覆盖已经存在的文件
+     * @throws IOException 复制失败，或者 {@code replace} 为 false 时目标文件已经存在
+     */
+    private static void copyFileAtomically(Path source, Path target, boolean replace) throws IOException {
+        Path temp = getTempFile(target);
+        try {
+            copyStrategy.copy(source, temp);
+            moveIntoPlace(temp, target, replace);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * @return 和目标文件在同一个目录中的隐藏的临时文件，扫描 {@link #OUTPUT_PATH} 时会跳过
+     */
+    private static Path getTempFile(Path target) {
+        return target.resolveSibling("." + target.getFileName() + "."
+                + TEMP_FILE_COUNTER.incrementAndGet() + ".tmp");
+    }
+
+    /**
+     * @throws IOException 重命名失败，或者 {@code replace} 为 false 时目标文件已经存在
+     */
+    private static void moveIntoPlace(Path temp, Path target, boolean replace) throws IOException {
+        if (replace) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } else {
+            // 目标文件已经存在时抛出 FileAlreadyExistsException
+            Files.move(temp, target);
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            // 只是临时文件
+        }
+    }
+
+    /**
+     * 支持的电子书格式
+     */
+    enum BookFormat {
+        MOBI(".mobi"),
+        EPUB(".epub"),
+        AZW3(".azw3"),
+        PDF(".pdf"),
+        TXT(".txt");
+
+        final String suffix;
+
+        BookFormat(String suffix) {
+            this.suffix = suffix;
+        }
+
+        /**
+         * @return 文件的格式，不支持时返回 null
+         */
+        static BookFormat ofFile(File file) {
+            String name = file.getName().toLowerCase(Locale.ROOT);
+            for (BookFormat format : values()) {
+                if (name.endsWith(format.suffix)) {
+                    return format;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @param names 逗号分隔的格式，例如 {@code mobi,epub,pdf}
+         */
+        static Set<BookFormat> parseAll(String names) {
+            Set<BookFormat> result = EnumSet.noneOf(BookFormat.class);
+            for (String name : names.split(",")) {
+                String s = name.trim().toUpperCase(Locale.ROOT);
+                if (s.startsWith(".")) {
+                    s = s.substring(1);
+                }
+                try {
+                    result.add(valueOf(s));
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("未知的格式：" + name);
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * 导出前的转换
+     */
+    interface Transform {
+
+        /**
+         * @param source 原文件
+         * @param target 转换后的文件，不存在
+         * @throws IOException 转换失败
+         */
+        void transform(Path source, Path target) throws IOException;
+    }
+
+    /**
+     * 将 EPUB 重新打包为确定的 zip 文件：使用相同的 JDK（zlib）时，同样的内容总是得到完全相同的文件，可以用来比较或去重。
+     * <p>
+     * mimetype 作为第一个文件并且不压缩（EPUB 的要求），其他文件按照名称排序，
+     * 所有文件的修改时间都为 1980-01-02，压缩级别固定，也不保存额外的字段和注释。
+     * 压缩后的数据由 JDK 使用的 zlib 决定，不同版本的 zlib 可能得到不同的结果，所以不同的 JDK 之间不保证完全相同。
+     */
+    static final class EpubRepackager implements Transform {
+
+        private static final String MIMETYPE = "mimetype";
+
+        /**
+         * 使用本地时间设置，这样不受时区的影响。
+         * 不能使用 1980-01-01 00:00，{@link ZipEntry} 用它表示 1980 年之前的时间，会额外保存和时区有关的时间戳
+         */
+        private static final LocalDateTime FIXED_TIME = LocalDateTime.of(1980, 1, 2, 0, 0);
+
+        @Override
+        public void transform(Path source, Path target) throws IOException {
+            try (ZipFile zip = new ZipFile(source.toFile());
+                 ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(target,
+                         StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)))) {
+                out.setLevel(Deflater.BEST_COMPRESSION);
+
+                List<? extends ZipEntry> entries = Collections.list(zip.entries());
+                entries.sort(Comparator.comparing((ZipEntry entry) -> !MIMETYPE.equals(entry.getName()))
+                        .thenComparing(ZipEntry::getName));
+
+                for (ZipEntry entry : entries) {
+                    byte[] data;
+                    try (InputStream in = zip.getInputStream(entry)) {
+                        data = in.readAllBytes();
+                    }
+
+                    ZipEntry copy = new ZipEntry(entry.getName());
+                    copy.setTimeLocal(FIXED_TIME);
+                    if (MIMETYPE.equals(entry.getName())) {
+                        CRC32 crc = new CRC32();
+                        crc.update(data);
+                        copy.setMethod(ZipEntry.STORED);
+                        copy.setSize(data.length);
+                        copy.setCompressedSize(data.length);
+                        copy.setCrc(crc.getValue());
+                    } else {
+                        copy.setMethod(ZipEntry.DEFLATED);
+                    }
+                    out.putNextEntry(copy);
+                    out.write(data);
+                    out.closeEntry();
+                }
+            }
+        }
+    }
+
+    /**
+     * 复制文件的方式
+     */
+    enum CopyStrategy {
+        /**
+         * {@link Files#copy(Path, Path, java.nio.file.CopyOption...)}
+         */
+        COPY {
+            @Override
+            void copy(Path source, Path target) throws IOException {
+                Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        },
+        /**
+         * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}，
+         * 在 Linux 中使用 sendfile 或 copy_file_range，数据不经过用户空间
+         */
+        TRANSFER {
+            @Override
+            void copy(Path source, Path target) throws IOException {
+                try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                     FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE,
+                             StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                    long size = in.size();
+                    long position = 0;
+                    // transferTo 一次不一定能传输所有的数据
+                    while (position < size) {
+                        long transferred = in.transferTo(position, size - position, out);
+                        if (transferred == 0) {
+                            // 抛出异常后临时文件会被删除，不会把不完整的文件当作复制成功
+                            if (in.size() < size) {
+                                throw new IOException("source shrank during copy: " + source);
+                            }
+                            // 大小没有变化却传输不了数据，继续循环不会有结果
+                            throw new IOException("transferTo made no progress at position "
+                                    + position + ": " + source);
+                        }
+                        position += transferred;
+                    }
+                }
+            }
+        },
+        /**
+         * 硬链接，不复制数据。原文件和目标文件不在同一个文件系统中时使用 {@link #COPY}
+         * <p>
+         * 注意：硬链接和原文件是同一个文件，直接修改其中一个会影响另一个
+         */
+        LINK {
+            @Override
+            void copy(Path source, Path target) throws IOException {
+                try {
+                    Files.createLink(target, source);
+                } catch (UnsupportedOperationException | FileSystemException e) {
+                    COPY.copy(source, target);
+                }
+            }
+        },
+        /**
+         * 使用 {@code cp --reflink=always} 创建共享数据块的副本（Btrfs、XFS 等文件系统），修改时才会复制数据。
+         * 不支持时使用 {@link #COPY}
+         */
+        REFLINK {
+            /**
+             * 文件系统或者 cp 不支持 reflink 时，cp 的错误信息中包含的内容（使用 {@code LC_ALL=C} 执行 cp）
+             */
+            private final List<String> unsupportedErrors = List.of("not supported", "cross-device link",
+                    "inappropriate ioctl", "invalid argument", "illegal option", "unrecognized option");
+
+            /**
+             * 确定不支持 reflink 之后就不再尝试
+             */
+            private final AtomicBoolean supported = new AtomicBoolean(true);
+
+            @Override
+            void copy(Path source, Path target) throws IOException {
+                if (supported.get() && reflink(source, target)) {
+                    return;
+                }
+                // 其他的失败（例如原文件不能读取）只影响这个文件，使用 COPY 复制，由 COPY 报告真正的错误
+                COPY.copy(source, target);
+            }
+
+            /**
+             * @return 是否复制成功
+             */
+            private boolean reflink(Path source, Path target) throws IOException {
+                ProcessBuilder builder = new ProcessBuilder("cp", "--reflink=always", "--",
+                        source.toString(), target.toString())
+                        .redirectErrorStream(true);
+                builder.environment().put("LC_ALL", "C");
+                Process process;
+                try {
+                    process = builder.start();
+                } catch (IOException e) {
+                    // 没有 cp 命令
+                    disable(e.getMessage());
+                    return false;
+                }
+                try {
+                    String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+                    if (process.waitFor() == 0) {
+                        return true;
+                    }
+                    String error = output.toLowerCase(Locale.ROOT);
+                    if (unsupportedErrors.stream().anyMatch(error::contains)) {
+                        disable(output.trim());
+                    }
+                    return false;
+                } catch (InterruptedException e) {
+                    process.destroy();
+                    Thread.currentThread().interrupt();
+                    throw new IOException("复制被中断", e);
+                }
+            }
+
+            private void disable(String reason) {
+                if (supported.compareAndSet(true, false)) {
+                    System.err.println("Reflink is not supported (" + reason + "), fall back to "
+                            + COPY.name().toLowerCase(Locale.ROOT));
+                }
+            }
+        };
+
+        /**
+         * 复制文件，目标文件已经存在时覆盖
+         *
+         * @param source 原文件
+         * @param target 目标文件
+         * @throws IOException 复制失败
+         */
+        abstract void copy(Path source, Path target) throws IOException;
+
+        static CopyStrategy of(String name) {
+            try {
+                return valueOf(name.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("未知的复制方式：" + name);
+            }
+        }
+    }
+
+    /**
+     * 根据 {@link #nameTemplate} 生成输出文件的名称（不含后缀）
+     *
+     * @param targetDir 目标文件的路径
+     * @return 输出文件的名称
+     */
+    private static String getOutputName(File targetDir) {
+        boolean titleOnly = TITLE_TEMPLATE.equals(nameTemplate);
+        return readMetadata(targetDir, titleOnly).format(nameTemplate);
+    }
+
+    /**
+     * 删除文件名中不能使用的字符，以及 Windows 不允许的结尾的点和空格，并限制文件名的长度
+     *
+     * @param name 文件名（不含后缀）
+     * @return 可以使用的文件名，可能为空字符串
+     */
+    private static String sanitizeFileName(String name) {
+        String s = normalizeSpace(ILLEGAL_FILENAME_CHARS.matcher(name).replaceAll("_"));
+
+        // 按照 UTF-8 的字节数截断，不拆分字符
+        int bytes = 0;
+        int end = 0;
+        while (end < s.length()) {
+            int codePoint = s.codePointAt(end);
+            int length = new String(Character.toChars(codePoint)).getBytes(StandardCharsets.UTF_8).length;
+            if (bytes + length > MAX_NAME_BYTES) {
+                break;
+            }
+            bytes += length;
+            end += Character.charCount(codePoint);
+        }
+        s = s.substring(0, end);
+
+        int last = s.length();
+        while (last > 0 && (s.charAt(last - 1) == '.' || s.charAt(last - 1) == ' ')) {
+            last--;
+        }
+        return s.substring(0, last);
+    }
+
+    /**
+     * 一本书可以使用的文件名（不含后缀），按照顺序尝试：
+     * <ol>
+     *     <li>根据 {@link #nameTemplate} 生成的名称，为空时使用书籍目录的名称</li>
+     *     <li>名称 - 作者</li>
+     *     <li>名称 - 丛书 序号</li>
+     *     <li>名称 (编号)，编号为 Calibre 书籍目录名称中的编号，没有时使用目录路径的 CRC32</li>
+     *     <li>名称 (编号-2)、名称 (编号-3)……</li>
+     * </ol>
+     * 作者和丛书只在第一个名称已经被使用时才会读取。
+     * <p>
+     * 所有的名称只由这本书决定，和其他书籍分配名称的顺序无关，
+     * 所以多个线程同时分配名称时，第一个名称之外的名称也不会因为处理的顺序而改变。
+     */
+    private static final class NameCandidates implements IntFunction<String> {
+
+        private final File directory;
+
+        private final String base;
+
+        private List<String> qualified;
+
+        NameCandidates(File directory) {
+            this.directory = directory;
+            String name = sanitizeFileName(getOutputName(directory));
+            if (name.isEmpty()) {
+                name = sanitizeFileName(directory.getName());
+            }
+            this.base = name.isEmpty() ? "untitled" : name;
+        }
+
+        @Override
+        public String apply(int attempt) {
+            if (attempt == 0) {
+                return base;
+            }
+            if (qualified == null) {
+                qualified = getQualifiedNames();
+            }
+            if (attempt <= qualified.size()) {
+                return qualified.get(attempt - 1);
+            }
+            int n = attempt - qualified.size();
+            String id = getBookId();
+            return base + (n == 1 ? " (" + id + ")" : " (" + id + "-" + n + ")");
+        }
+
+        private String getBookId() {
+            Matcher matcher = CALIBRE_BOOK_DIRECTORY.matcher(directory.getName());
+            if (matcher.matches()) {
+                return matcher.group(1);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(directory.getPath().getBytes(StandardCharsets.UTF_8));
+            return Long.toHexString(crc.getValue());
+        }
+
+        private List<String> getQualifiedNames() {
+            BookMetadata metadata = readMetadata(directory, false);
+            List<String> names = new ArrayList<>(2);
+            if (!metadata.author.isEmpty()) {
+                names.add(sanitizeFileName(base + " - " + metadata.author));
+            }
+            if (!metadata.series.isEmpty()) {
+                names.add(sanitizeFileName(base + " - " + metadata.series + " " + metadata.seriesIndex));
+            }
+            names.removeIf(base::equals);
+            return names;
+        }
+    }
+
+    /**
+     * 输出文件的名称索引，用于在复制之前为每本书分配不重复的文件名。
+     * <p>
+     * 启动时读取一次 {@link #OUTPUT_PATH} 中已经存在的文件，以及 {@link #NAMES_PATH} 中记录的每个文件属于哪一本书，
+     * 之后只在内存中更新，导出完成后再保存到 {@link #NAMES_PATH} 中。
+     * 已经存在的文件只有在记录的书籍就是这本书时才会被继续使用（需要时覆盖），
+     * 没有记录的文件和属于其他书籍的文件都不会被覆盖，即使这本书需要覆盖之前导出的文件，
+     * 或者属于其他书籍的文件在这一次执行中没有被分配（例如增量模式下没有变化的书籍）。
+     * <p>
+     * 文件名不区分大小写并统一为 NFC，这样在 Windows 和 macOS 中也不会冲突。
+     * 每个文件名的分配是 {@link ConcurrentHashMap#compute} 中的一次原子操作，多个线程可以同时分配。
+     */
+    private static final class NamingIndex {
+
+        private static final String NAMES_HEADER = "# calibre names v1";
+
+        /**
+         * 已经存在、但是没有记录属于哪一本书的文件
+         */
+        private static final String UNKNOWN_OWNER = "";
+
+        /**
+         * key 为文件名，value 为使用这个文件名的书籍目录的路径
+         */
+        private final Map<String, String> names = new ConcurrentHashMap<>();
+
+        /**
+         * @param outputDir 输出文件的目录
+         * @param namesPath 记录每个文件属于哪一本书的文件，不存在时所有已经存在的文件都不会被使用
+         */
+        static NamingIndex load(Path outputDir, Path namesPath) {
+            NamingIndex index = new NamingIndex();
+            try {
+                Files.createDirectories(outputDir);
+            } catch (IOException e) {
+                throw new RuntimeException("创建目录失败");
+            }
+
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(outputDir)) {
+                for (Path entry : entries) {
+                    String name = entry.getFileName().toString();
+                    // 跳过中途退出时留下的临时文件
+                    if (name.startsWith(".") && name.endsWith(".tmp")) {
+                        continue;
+                    }
+                    index.names.put(key(name), UNKNOWN_OWNER);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("读取文件失败");
+            }
+
+            if (!Files.exists(namesPath)) {
+                return index;
+            }
+            try (Stream<String> lines = Files.lines(namesPath, StandardCharsets.UTF_8)) {
+                lines.filter(line -> !line.startsWith("#"))
+                        .forEach(line -> {
+                            // 每一行是 "文件名<Tab>书籍目录的路径"，文件名中不会有 Tab。已经被删除的文件不再记录
+                            int idx = line.indexOf('\t');
+                            if (idx > 0) {
+                                index.names.replace(key(line.substring(0, idx)), UNKNOWN_OWNER, line.substring(idx + 1));
+                            }
+                        });
+            } catch (IOException | UncheckedIOException e) {
+                System.err.println("Fail to read names, existing files will not be overwritten: [Reason: "
+                        + e.getMessage() + "]");
+            }
+            return index;
+        }
+
+        private static String key(String name) {
+            return Normalizer.normalize(name, Normalizer.Form.NFC).toLowerCase(Locale.ROOT);
+        }
+
+        /**
+         * 为一本书的所有文件分配同一个文件名
+         * <p>
+         * 已经存在的文件只有属于这本书时，才会继续使用这个文件名。
+         *
+         * @param owner      书籍目录的路径
+         * @param files      书籍的文件
+         * @param candidates 可以使用的文件名（不含后缀），参数为尝试的次数
+         * @return 分配的文件名（不含后缀）
+         */
+        String reserve(String owner, List<BookFile> files, IntFunction<String> candidates) {
+            for (int attempt = 0; ; attempt++) {
+                String name = candidates.apply(attempt);
+                if (tryReserve(owner, files, name)) {
+                    return name;
+                }
+            }
+        }
+
+        private boolean tryReserve(String owner, List<BookFile> files, String name) {
+            Set<String> reserved = new HashSet<>();
+            for (BookFile file : files) {
+                String key = key(name + getSuffix(file.file));
+                String result = names.compute(key, (k, current) -> {
+                    if (current == null) {
+                        reserved.add(k);
+                        return owner;
+                    }
+                    // 这本书之前导出的文件，或者这本书的其他文件已经分配了这个文件名
+                    return current;
+                });
+
+                if (!owner.equals(result)) {
+                    // 有一个文件名已经被使用，删除这一次新分配的其他文件名
+                    reserved.forEach(k -> names.remove(k, owner));
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * 将每个文件属于哪一本书写入 {@code namesPath}。先写入临时文件再替换，避免中途退出时损坏原来的文件
+         */
+        void save(Path namesPath) {
+            Map<String, String> owners = new TreeMap<>(names);
+            owners.values().removeIf(UNKNOWN_OWNER::equals);
+
+            Path temp = namesPath.resolveSibling(namesPath.getFileName() + ".tmp");
+            try (PrintWriter pw = new PrintWriter(Files.newBufferedWriter(temp, StandardCharsets.UTF_8))) {
+                pw.println(NAMES_HEADER);
+                owners.forEach((name, owner) -> pw.println(name + "\t" + owner));
+            } catch (IOException e) {
+                System.err.println("Fail to write names: [Reason: " + e.getMessage() + "]");
+                return;
+            }
+
+            try {
+                Files.move(temp, namesPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                System.err.println("Fail to write names: [Reason: " + e.getMessage() + "]");
+            }
+        }
+    }
+
+    private static XMLInputFactory createXmlInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        // 将相邻的文本和实体合并为一个事件，标题中的 &amp; 等实体会被解码
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        // 不读取 DTD 和外部实体
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
+    /**
+     * 使用 {@link XMLStreamReader} 读取 {@link #FILE_NAME_WITH_TITLE} 文件中的书籍信息。
+     * <p>
+     * 只读取需要的部分：{@code titleOnly} 为 true 时读取到标题结束就停止，否则读取到 {@code <metadata>} 结束就停止。
+     * 文件不是正确的 XML 时，使用 {@link #getTitleFromLine(File)} 获取标题。
+     *
+     * @param targetDir 目标文件的路径
+     * @param titleOnly 是否只需要标题
+     * @return 书籍信息，没有的信息为空字符串
+     */
+    private static BookMetadata readMetadata(File targetDir, boolean titleOnly) {
+        File file = new File(targetDir, FILE_NAME_WITH_TITLE);
+        BookMetadata metadata = new BookMetadata();
+
+        try (FileInputStream fis = new FileInputStream(file)) {
+            XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(fis);
+            try {
+                readMetadata(reader, metadata, titleOnly);
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            metadata.title = getTitleFromLine(targetDir);
+        } catch (IOException e) {
+            // 和之前一样，读取失败时标题为空字符串
+        }
+        return metadata;
+    }
+
+    private static void readMetadata(XMLStreamReader reader, BookMetadata metadata, boolean titleOnly)
+            throws XMLStreamException {
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT && "metadata".equals(reader.getLocalName())) {
+                return;
+            }
+            if (event != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+
+            String name = reader.getLocalName();
+            if (DC_NAMESPACE.equals(reader.getNamespaceURI())) {
+                if ("title".equals(name) && metadata.title.isEmpty()) {
+                    // getElementText() 读取到标签结束，标题可以有多行
+                    metadata.title = normalizeSpace(reader.getElementText());
+                    if (titleOnly) {
+                        return;
+                    }
+                } else if ("creator".equals(name) && metadata.author.isEmpty()) {
+                    metadata.author = normalizeSpace(reader.getElementText());
+                } else if ("language".equals(name) && metadata.language.isEmpty()) {
+                    metadata.language = normalizeSpace(reader.getElementText());
+                }
+            } else if ("meta".equals(name)) {
+                // Calibre 使用 <meta name="calibre:series" content="..."/> 保存丛书信息
+                String metaName = reader.getAttributeValue(null, "name");
+                String content = reader.getAttributeValue(null, "content");
+                if ("calibre:series".equals(metaName) && content != null) {
+                    metadata.series = normalizeSpace(content);
+                } else if ("calibre:series_index".equals(metaName) && content != null) {
+                    metadata.seriesIndex = formatSeriesIndex(content.trim());
+                }
+            }
+        }
+    }
+
+    private static String normalizeSpace(String s) {
+        return WHITESPACE.matcher(s.trim()).replaceAll(" ");
+    }
+
+    /**
+     * Calibre 保存的序号为 "1.0" 这样的小数，整数时去掉小数部分
+     */
+    private static String formatSeriesIndex(String index) {
+        try {
+            double value = Double.parseDouble(index);
+            if (value == Math.rint(value) && !Double.isInfinite(value)) {
+                return String.valueOf((long) value);
+            }
+        } catch (NumberFormatException e) {
+            // 使用原来的值
+        }
+        return index;
+    }
+
+    /**
+     * 书籍信息，用于生成输出文件的名称
+     */
+    static final class BookMetadata {
+
+        String title = "";
+
+        String author = "";
+
+        String series = "";
+
+        String seriesIndex = "";
+
+        String language = "";
+
+        /**
+         * 替换模板中的变量，并去掉多余的空格
+         *
+         * @param template 命名模板
+         * @return 输出文件的名称
+         */
+        String format(String template) {
+            if (TITLE_TEMPLATE.equals(template)) {
+                return title;
+            }
+            // 只替换一次模板中的变量，书籍信息中含有 {author} 这样的文字时不会再被替换
+            Matcher matcher = TEMPLATE_VARIABLE.matcher(template);
+            StringBuilder name = new StringBuilder();
+            while (matcher.find()) {
+                String value = getVariable(matcher.group(1));
+                // 不认识的变量保持原样
+                matcher.appendReplacement(name, Matcher.quoteReplacement(value == null ? matcher.group() : value));
+            }
+            matcher.appendTail(name);
+            return normalizeSpace(name.toString());
+        }
+
+        /**
+         * @return 变量的值，不认识的变量返回 null
+         */
+        private String getVariable(String variable) {
+            switch (variable) {
+                case "title":
+                    return title;
+                case "author":
+                    return author;
+                case "series":
+                    return series;
+                case "index":
+                    return seriesIndex;
+                case "language":
+                    return language;
+                default:
+                    return null;
+            }
+        }
+    }
 
     /**
-     * 在 {@link #FILE_NAME_WITH_TITLE} 文件中获取需要的标题
+     * 在 {@link #FILE_NAME_WITH_TITLE} 文件中按行获取标题，用于不是正确的 XML 的文件
      *
      * @param targetDir 目标文件的路径
      * @return 需要的标题
      */
-    private static String getTitle(File targetDir) {
+    private static String getTitleFromLine(File targetDir) {
         String targetLine = getTitleLine(targetDir);
         if (Objects.isNull(targetLine) || "".equals(targetLine)) {
             return "";
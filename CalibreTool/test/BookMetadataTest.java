@@ -0,0 +1,42 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * 测试 {@link CalibreTool.BookMetadata#format} 替换命名模板中的变量
+ */
+class BookMetadataTest {
+
+    @Test
+    void replacesVariables() {
+        CalibreTool.BookMetadata metadata = metadata("Title", "Jane", "Series", "2");
+        assertEquals("Jane - Series 2 - Title", metadata.format("{author} - {series} {index} - {title}"));
+    }
+
+    @Test
+    void doesNotReplaceVariablesInsideValues() {
+        CalibreTool.BookMetadata metadata = metadata("Notes on {author}", "Jane", "", "");
+        assertEquals("Notes on {author} - Jane", metadata.format("{title} - {author}"));
+    }
+
+    @Test
+    void keepsReplacementCharactersInValues() {
+        CalibreTool.BookMetadata metadata = metadata("$1 \\ {0}", "A$B", "", "");
+        assertEquals("A$B - $1 \\ {0}", metadata.format("{author} - {title}"));
+    }
+
+    @Test
+    void keepsUnknownVariables() {
+        CalibreTool.BookMetadata metadata = metadata("Title", "", "", "");
+        assertEquals("{publisher} Title", metadata.format("{publisher}  {title}"));
+    }
+
+    private static CalibreTool.BookMetadata metadata(String title, String author, String series, String seriesIndex) {
+        CalibreTool.BookMetadata metadata = new CalibreTool.BookMetadata();
+        metadata.title = title;
+        metadata.author = author;
+        metadata.series = series;
+        metadata.seriesIndex = seriesIndex;
+        return metadata;
+    }
+}
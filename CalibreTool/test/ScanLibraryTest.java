@@ -0,0 +1,77 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * {@link CalibreTool#scanLibrary} 跟随符号链接时，每个目录只扫描一次
+ */
+class ScanLibraryTest {
+
+    /**
+     * 线程数多于目录的层数，每一层的子目录都可能交给新的任务
+     */
+    private final ForkJoinPool pool = new ForkJoinPool(8);
+
+    @TempDir
+    Path library;
+
+    @AfterEach
+    void shutdownPool() {
+        pool.shutdown();
+    }
+
+    private void writeBook(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        Files.writeString(directory.resolve(CalibreTool.FILE_NAME_WITH_TITLE),
+                "<package>\n<dc:title>T</dc:title>\n</package>\n", StandardCharsets.UTF_8);
+        Files.writeString(directory.resolve("t.epub"), "epub", StandardCharsets.UTF_8);
+    }
+
+    private List<String> scan() {
+        List<String> books = new CopyOnWriteArrayList<>();
+        CalibreTool.scanLibrary(pool, library.toFile(), book -> books.add(book.directory.getPath()));
+        return books;
+    }
+
+    @Test
+    void scansBookOnceWhenLinkPointsToAncestor() throws IOException {
+        Path book = library.resolve("a");
+        writeBook(book);
+        Path deep = Files.createDirectories(book.resolve("b/c/d"));
+        Files.createSymbolicLink(deep.resolve("loop"), book);
+
+        assertEquals(List.of(book.toFile().getPath()), scan());
+    }
+
+    @Test
+    void scansBookOnceWhenReachedThroughTwoLinks() throws IOException {
+        Path book = library.resolve("books/a");
+        writeBook(book);
+        Files.createSymbolicLink(library.resolve("alias1"), book);
+        Files.createSymbolicLink(library.resolve("alias2"), library.resolve("books"));
+
+        List<String> books = scan();
+
+        assertEquals(1, books.size(), books::toString);
+    }
+
+    @Test
+    void scansEveryBookInTheLibrary() throws IOException {
+        for (int i = 0; i < 20; i++) {
+            writeBook(library.resolve("Author " + i).resolve("Book (" + i + ")"));
+        }
+        Files.createSymbolicLink(library.resolve("Author 0").resolve("loop"), library);
+
+        assertEquals(20, scan().size());
+    }
+}
@@ -0,0 +1,116 @@
+package fanfou.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * 端到端的下载：获取并解析一页相册，再通过下载引擎下载这一页的所有照片
+ * <p>
+ * 结果为每秒下载的照片数。请求速率的限制设置得足够高，测量的是下载引擎本身的开销和并发能力。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class DownloadBenchmark {
+
+    private static final int PHOTOS_PER_PAGE = 20;
+
+    /**
+     * 每个响应的延迟（毫秒）
+     */
+    @Param({"0", "20"})
+    public int latencyMillis;
+
+    /**
+     * 每个响应的带宽（字节/秒），0 表示不限制
+     */
+    @Param({"0", "8388608"})
+    public long bytesPerSecond;
+
+    @Param({"262144"})
+    public int photoBytes;
+
+    @Param({"8"})
+    public int workers;
+
+    private FixtureServer fixture;
+
+    private Object engine;
+
+    private Path directory;
+
+    private int invocation;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        fixture = new FixtureServer(1, PHOTOS_PER_PAGE, photoBytes, latencyMillis, bytesPerSecond);
+        engine = ToolBridge.newEngine(
+                "--workers=" + workers,
+                "--photo-host-limit=" + workers,
+                "--page-rate=100000",
+                "--photo-rate=100000",
+                "--max-rate=100000",
+                "--metrics-interval=0");
+        directory = Files.createTempDirectory("fanfou-benchmark");
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PHOTOS_PER_PAGE)
+    public void downloadPage() throws IOException {
+        String page = ToolBridge.getPage(engine, fixture.getAlbumUrl() + "/p.1");
+        List<String> urls = ToolBridge.extract(new StringReader(page));
+
+        // 每次下载到新的文件，避免断点续传和已存在的文件影响结果
+        int n = invocation++;
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        List<Path> targets = new ArrayList<>();
+        for (int i = 0; i < urls.size(); i++) {
+            Path target = directory.resolve(n + "-" + i + ".jpg");
+            targets.add(target);
+            futures.add(ToolBridge.submitPhoto(engine, "bench",
+                    ToolBridge.getOriginPhotoUrl(urls.get(i)), target));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+
+        for (Path target : targets) {
+            Files.delete(target);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        ToolBridge.close(engine);
+        fixture.close();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+}
@@ -0,0 +1,181 @@
+package fanfou.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 在本机模拟饭否的相册页面和照片
+ * <p>
+ * 相册页面使用 {@code album-page.html} 模板生成，和饭否的相册页面结构相同；
+ * 照片为固定大小的随机字节。每个响应都可以设置延迟和带宽，用于在没有网络的情况下测试下载的性能。
+ */
+public final class FixtureServer implements AutoCloseable {
+
+    public static final String ALBUM_PATH = "/album/bench";
+
+    private static final int WRITE_CHUNK = 16 * 1024;
+
+    private final HttpServer server;
+
+    private final ExecutorService executor;
+
+    private final String template;
+
+    private final int pages;
+
+    private final int photosPerPage;
+
+    private final byte[] photo;
+
+    private final long latencyMillis;
+
+    private final long bytesPerSecond;
+
+    /**
+     * @param pages          相册的页数，超过最后一页的页面中没有照片
+     * @param photosPerPage  每页的照片数
+     * @param photoBytes     每张照片的大小
+     * @param latencyMillis  每个响应在发送之前等待的时间
+     * @param bytesPerSecond 每个响应的带宽，0 表示不限制
+     */
+    public FixtureServer(int pages,
+                         int photosPerPage,
+                         int photoBytes,
+                         long latencyMillis,
+                         long bytesPerSecond) throws IOException {
+        this.template = loadTemplate();
+        this.pages = pages;
+        this.photosPerPage = photosPerPage;
+        this.photo = new byte[photoBytes];
+        new Random(42).nextBytes(photo);
+        this.latencyMillis = latencyMillis;
+        this.bytesPerSecond = bytesPerSecond;
+
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.server.createContext(ALBUM_PATH, this::handlePage);
+        this.server.createContext("/photo/", this::handlePhoto);
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "fixture-server");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.server.setExecutor(executor);
+        this.server.start();
+    }
+
+    public String getBaseUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    public String getAlbumUrl() {
+        return getBaseUrl() + ALBUM_PATH;
+    }
+
+    /**
+     * 生成相册的某一页
+     *
+     * @param baseUrl 照片所在的地址
+     */
+    public String renderPage(String baseUrl, int page) {
+        StringBuilder photos = new StringBuilder();
+        if (page >= 1 && page <= pages) {
+            for (int i = 0; i < photosPerPage; i++) {
+                String id = "p" + page + "n" + i;
+                photos.append("<li><a href=\"/photo/").append(id).append("\" class=\"photo\" title=\"")
+                        .append(id).append("\"><img src=\"").append(baseUrl).append("/photo/")
+                        .append(id).append(".jpg@200w_200h_1l.jpg\" alt=\"").append(id)
+                        .append("\" /></a></li>\n");
+            }
+        }
+
+        StringBuilder pager = new StringBuilder();
+        for (int i = Math.max(1, page - 4); i <= Math.min(pages, page + 4); i++) {
+            if (i == page) {
+                pager.append("<li class=\"current\">").append(i).append("</li>\n");
+            } else {
+                pager.append("<li><a href=\"").append(ALBUM_PATH).append("/p.").append(i).append("\">")
+                        .append(i).append("</a></li>\n");
+            }
+        }
+
+        return template.replace("{{base}}", baseUrl)
+                .replace("{{total}}", String.valueOf(pages * photosPerPage))
+                .replace("{{photos}}", photos)
+                .replace("{{pager}}", pager);
+    }
+
+    private void handlePage(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        int index = path.lastIndexOf("/p.");
+        int page = 1;
+        if (index >= 0) {
+            try {
+                page = Integer.parseInt(path.substring(index + 3));
+            } catch (NumberFormatException e) {
+                page = 0;
+            }
+        }
+        byte[] body = renderPage(getBaseUrl(), page).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "text/html; charset=utf-8");
+        send(exchange, body);
+    }
+
+    private void handlePhoto(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "image/jpeg");
+        send(exchange, photo);
+    }
+
+    private void send(HttpExchange exchange, byte[] body) throws IOException {
+        try (exchange) {
+            pause(TimeUnit.MILLISECONDS.toNanos(latencyMillis));
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream out = exchange.getResponseBody();
+            long start = System.nanoTime();
+            for (int offset = 0; offset < body.length; offset += WRITE_CHUNK) {
+                int length = Math.min(WRITE_CHUNK, body.length - offset);
+                out.write(body, offset, length);
+                if (bytesPerSecond > 0) {
+                    // 按照带宽计算这些字节最早的发送完成时间
+                    long due = start + (offset + length) * 1_000_000_000L / bytesPerSecond;
+                    pause(due - System.nanoTime());
+                }
+            }
+        }
+    }
+
+    private static void pause(long nanos) {
+        if (nanos > 0) {
+            LockSupport.parkNanos(nanos);
+        }
+    }
+
+    private static String loadTemplate() {
+        try (InputStream in = FixtureServer.class.getResourceAsStream("/album-page.html")) {
+            if (in == null) {
+                throw new IllegalStateException("album-page.html not found");
+            }
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
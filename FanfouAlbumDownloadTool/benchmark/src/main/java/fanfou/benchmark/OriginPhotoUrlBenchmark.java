@@ -0,0 +1,49 @@
+package fanfou.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 从缩略图的 URL 中得到原图的 URL
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OriginPhotoUrlBenchmark {
+
+    private static final int URLS = 64;
+
+    private final String[] urls = new String[URLS];
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < URLS; i++) {
+            // 一半是缩略图，一半已经是原图
+            urls[i] = "https://photo.fanfou.com/v1/mss_3d027b52ec5a4d589e68050845611e68/ff/n0/0d/" + i
+                    + (i % 2 == 0 ? ".jpg@200w_200h_1l.jpg" : ".jpg");
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(URLS)
+    public void getOriginPhotoUrl(Blackhole blackhole) {
+        for (String url : urls) {
+            blackhole.consume(ToolBridge.getOriginPhotoUrl(url));
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package fanfou.benchmark;
+
+import org.jsoup.Jsoup;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 解析相册页面：使用 jsoup 构建 DOM 和边读取边解析的对比
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PageParseBenchmark {
+
+    private static final String PAGE_URL = "https://fanfou.com" + FixtureServer.ALBUM_PATH + "/p.1";
+
+    @Param({"20", "200"})
+    public int photosPerPage;
+
+    private byte[] page;
+
+    @Setup
+    public void setUp() throws Exception {
+        // 只使用模板生成页面，不需要启动服务器
+        try (FixtureServer fixture = new FixtureServer(1, photosPerPage, 0, 0, 0)) {
+            page = fixture.renderPage("https://photo.fanfou.com", 1).getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    @Benchmark
+    public List<String> dom() {
+        // 和 HttpTransport.getPage 一样，先把整个页面读成字符串
+        String body = new String(page, StandardCharsets.UTF_8);
+        List<String> urls = new ArrayList<>();
+        ToolBridge.getDomPhotoUrls(Jsoup.parse(body, PAGE_URL)).forEach(urls::add);
+        return urls;
+    }
+
+    @Benchmark
+    public List<String> stream() {
+        Reader reader = new InputStreamReader(new ByteArrayInputStream(page), StandardCharsets.UTF_8);
+        List<String> urls = new ArrayList<>();
+        ToolBridge.extract(reader).forEach(src -> urls.add(ToolBridge.getOriginPhotoUrl(src)));
+        return urls;
+    }
+}
@@ -0,0 +1,138 @@
+package fanfou.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * 把一张照片的响应体写入文件：以前的 1 KB 字节数组循环和现在的 channel + direct buffer 的对比
+ * <p>
+ * 两种方式使用同一个 HTTP 客户端请求 {@link FixtureServer}，都会计算 SHA-256，
+ * 都先写入 {@code .part} 文件再移动到目标文件，区别只在于读取响应体和写入文件的方式。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class PhotoCopyBenchmark {
+
+    /**
+     * 以前的实现中缓冲区的大小
+     */
+    private static final int LEGACY_BUFFER_SIZE = 1024;
+
+    @Param({"262144", "4194304"})
+    public int photoBytes;
+
+    @Param({"65536"})
+    public int bufferSize;
+
+    private FixtureServer fixture;
+
+    private Object engine;
+
+    private String photoUrl;
+
+    private Path directory;
+
+    private int invocation;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        fixture = new FixtureServer(1, 1, photoBytes, 0, 0);
+        engine = ToolBridge.newEngine(
+                "--buffer-size=" + bufferSize,
+                "--metrics-interval=0");
+        photoUrl = fixture.getBaseUrl() + "/photo/bench.jpg";
+        directory = Files.createTempDirectory("fanfou-benchmark");
+    }
+
+    /**
+     * user-005 之前的实现：{@link InputStream} 读入 1 KB 的字节数组，再包装为 {@link ByteBuffer} 写入文件
+     */
+    @Benchmark
+    public long legacyStreamLoop() throws IOException {
+        Path target = nextTarget();
+        Path part = target.resolveSibling(target.getFileName() + ".part");
+        MessageDigest digest = newSha256();
+        long bytes = 0;
+        try (InputStream in = ToolBridge.openPhoto(engine, photoUrl);
+             FileChannel out = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            byte[] buffer = new byte[LEGACY_BUFFER_SIZE];
+            for (int len = in.read(buffer); len > 0; len = in.read(buffer)) {
+                digest.update(buffer, 0, len);
+                ByteBuffer src = ByteBuffer.wrap(buffer, 0, len);
+                while (src.hasRemaining()) {
+                    out.write(src);
+                }
+                bytes += len;
+            }
+        }
+        Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        digest.digest();
+        Files.delete(target);
+        return bytes;
+    }
+
+    /**
+     * 现在的实现：{@code PhotoFetcher.fetch}
+     */
+    @Benchmark
+    public void channelDirectBuffer() throws IOException {
+        Path target = nextTarget();
+        ToolBridge.fetch(engine, photoUrl, target);
+        Files.delete(target);
+    }
+
+    /**
+     * 每次下载到新的文件，避免断点续传和已存在的文件影响结果
+     */
+    private Path nextTarget() {
+        return directory.resolve(invocation++ + ".jpg");
+    }
+
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        ToolBridge.close(engine);
+        fixture.close();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+}
@@ -0,0 +1,228 @@
+package fanfou.benchmark;
+
+import org.jsoup.nodes.Document;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Proxy;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 调用下载工具中的类和方法
+ * <p>
+ * 下载工具的类都在默认包中，其他包中的代码无法直接引用，而 JMH 又要求 benchmark 不能在默认包中，
+ * 所以在这里通过 {@link MethodHandle} 调用。方法句柄保存在 static final 字段中，JIT 编译后和直接调用的开销相同。
+ */
+@SuppressWarnings("unchecked")
+final class ToolBridge {
+
+    private static final MethodHandle EXTRACT;
+
+    private static final MethodHandle GET_DOM_PHOTO_URLS;
+
+    private static final MethodHandle GET_ORIGIN_PHOTO_URL;
+
+    private static final MethodHandle PARSE_OPTIONS;
+
+    private static final MethodHandle NEW_ENGINE;
+
+    private static final MethodHandle GET_TRANSPORT;
+
+    private static final MethodHandle GET_PAGE;
+
+    private static final MethodHandle GET_PHOTO;
+
+    private static final MethodHandle GET_PHOTO_FETCHER;
+
+    private static final MethodHandle FETCH;
+
+    private static final MethodHandle SUBMIT_PHOTO;
+
+    private static final MethodHandle CLOSE_ENGINE;
+
+    private static final Class<?> PHOTO_TASK;
+
+    static {
+        try {
+            Class<?> tool = Class.forName("FanfouAlbumDownloadTool");
+            Class<?> extractor = Class.forName("PhotoUrlExtractor");
+            Class<?> options = Class.forName("DownloadOptions");
+            Class<?> engine = Class.forName("DownloadEngine");
+            Class<?> transport = Class.forName("HttpTransport");
+            Class<?> fetcher = Class.forName("PhotoFetcher");
+            Class<?> result = Class.forName("PhotoFetcher$Result");
+            PHOTO_TASK = Class.forName("DownloadEngine$PhotoTask");
+
+            EXTRACT = lookup(extractor).findStatic(extractor, "extract",
+                    MethodType.methodType(List.class, Reader.class));
+            GET_DOM_PHOTO_URLS = lookup(tool).findStatic(tool, "getPhotoUrls",
+                    MethodType.methodType(List.class, Document.class));
+            GET_ORIGIN_PHOTO_URL = lookup(tool).findStatic(tool, "getOriginPhotoUrl",
+                    MethodType.methodType(String.class, String.class));
+            PARSE_OPTIONS = lookup(options).findStatic(options, "parse",
+                    MethodType.methodType(options, String[].class))
+                    .asType(MethodType.methodType(Object.class, String[].class));
+            NEW_ENGINE = lookup(engine).findConstructor(engine, MethodType.methodType(void.class, options))
+                    .asType(MethodType.methodType(Object.class, Object.class));
+            GET_TRANSPORT = lookup(engine).findVirtual(engine, "getTransport", MethodType.methodType(transport))
+                    .asType(MethodType.methodType(Object.class, Object.class));
+            GET_PAGE = lookup(transport).findVirtual(transport, "getPage",
+                    MethodType.methodType(String.class, String.class))
+                    .asType(MethodType.methodType(String.class, Object.class, String.class));
+            GET_PHOTO = lookup(transport).findVirtual(transport, "getPhoto",
+                    MethodType.methodType(HttpResponse.class, String.class, String.class, String.class))
+                    .asType(MethodType.methodType(HttpResponse.class,
+                            Object.class, String.class, String.class, String.class));
+            GET_PHOTO_FETCHER = lookup(engine).findVirtual(engine, "getPhotoFetcher", MethodType.methodType(fetcher))
+                    .asType(MethodType.methodType(Object.class, Object.class));
+            FETCH = lookup(fetcher).findVirtual(fetcher, "fetch", MethodType.methodType(result, String.class, Path.class))
+                    .asType(MethodType.methodType(Object.class, Object.class, String.class, Path.class));
+            SUBMIT_PHOTO = lookup(engine).findVirtual(engine, "submitPhoto",
+                    MethodType.methodType(CompletableFuture.class, String.class, String.class, PHOTO_TASK))
+                    .asType(MethodType.methodType(CompletableFuture.class,
+                            Object.class, String.class, String.class, Object.class));
+            CLOSE_ENGINE = lookup(engine).findVirtual(engine, "close", MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(void.class, Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private ToolBridge() {
+    }
+
+    private static MethodHandles.Lookup lookup(Class<?> target) throws IllegalAccessException {
+        // 都在 classpath 的同一个模块中，可以访问 private 和包访问权限的成员
+        return MethodHandles.privateLookupIn(target, MethodHandles.lookup());
+    }
+
+    /**
+     * {@code PhotoUrlExtractor.extract(Reader)}
+     */
+    static List<String> extract(Reader reader) {
+        try {
+            return (List<String>) EXTRACT.invoke(reader);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    /**
+     * {@code FanfouAlbumDownloadTool.getPhotoUrls(Document)}
+     */
+    static List<String> getDomPhotoUrls(Document document) {
+        try {
+            return (List<String>) GET_DOM_PHOTO_URLS.invoke(document);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    /**
+     * {@code FanfouAlbumDownloadTool.getOriginPhotoUrl(String)}
+     */
+    static String getOriginPhotoUrl(String url) {
+        try {
+            return (String) GET_ORIGIN_PHOTO_URL.invoke(url);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    /**
+     * 使用命令行参数创建 {@code DownloadEngine}
+     */
+    static Object newEngine(String... args) {
+        try {
+            return NEW_ENGINE.invoke(PARSE_OPTIONS.invoke(args));
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    /**
+     * {@code engine.getTransport().getPage(url)}
+     */
+    static String getPage(Object engine, String url) {
+        try {
+            return (String) GET_PAGE.invoke(GET_TRANSPORT.invoke(engine), url);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    /**
+     * {@code engine.getTransport().getPhoto(url, null, null)}
+     *
+     * @return 完整照片的响应体，调用者需要关闭
+     */
+    static InputStream openPhoto(Object engine, String url) {
+        try {
+            HttpResponse<InputStream> response = (HttpResponse<InputStream>) GET_PHOTO.invoke(
+                    GET_TRANSPORT.invoke(engine), url, null, null);
+            return response.body();
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    /**
+     * 不经过下载引擎，直接调用 {@code engine.getPhotoFetcher().fetch(url, target)}
+     */
+    static void fetch(Object engine, String url, Path target) {
+        try {
+            FETCH.invoke(GET_PHOTO_FETCHER.invoke(engine), url, target);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    /**
+     * 通过 {@code engine.submitPhoto} 下载照片到 {@code target}
+     */
+    static CompletableFuture<Void> submitPhoto(Object engine, String albumName, String url, Path target) {
+        try {
+            Object fetcher = GET_PHOTO_FETCHER.invoke(engine);
+            Object task = Proxy.newProxyInstance(PHOTO_TASK.getClassLoader(), new Class<?>[]{PHOTO_TASK},
+                    (proxy, method, args) -> {
+                        if (!"run".equals(method.getName())) {
+                            throw new UnsupportedOperationException(method.getName());
+                        }
+                        FETCH.invoke(fetcher, url, target);
+                        return null;
+                    });
+            return (CompletableFuture<Void>) SUBMIT_PHOTO.invoke(engine, albumName, url, task);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static void close(Object engine) {
+        try {
+            CLOSE_ENGINE.invoke(engine);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable e) {
+        if (e instanceof RuntimeException) {
+            return (RuntimeException) e;
+        }
+        if (e instanceof Error) {
+            throw (Error) e;
+        }
+        if (e instanceof IOException) {
+            return new UncheckedIOException((IOException) e);
+        }
+        return new IllegalStateException(e);
+    }
+}
@@ -0,0 +1,44 @@
+/**
+ * 正在下载的相册，以及下载过程中需要用到的文件
+ */
+final class Album {
+
+    /**
+     * 相册名称，也是保存照片的目录
+     */
+    final String name;
+
+    final String url;
+
+    final DownloadManifest manifest;
+
+    final FailedPhotoQueue failedQueue;
+
+    /**
+     * 文本日志，同时输出到控制台
+     */
+    final AsyncAppender log;
+
+    /**
+     * JSON Lines 格式的事件日志，每次下载照片记录一行
+     */
+    final AsyncAppender events;
+
+    final AlbumProgress progress;
+
+    Album(String name,
+          String url,
+          DownloadManifest manifest,
+          FailedPhotoQueue failedQueue,
+          AsyncAppender log,
+          AsyncAppender events,
+          AlbumProgress progress) {
+        this.name = name;
+        this.url = url;
+        this.manifest = manifest;
+        this.failedQueue = failedQueue;
+        this.log = log;
+        this.events = events;
+        this.progress = progress;
+    }
+}
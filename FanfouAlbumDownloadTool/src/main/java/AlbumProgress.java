@@ -0,0 +1,69 @@
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 一个相册的下载进度，用于输出所有相册的汇总进度
+ * <p>
+ * 计数器会被多个下载线程同时更新，所以使用 {@link LongAdder}。
+ */
+final class AlbumProgress {
+
+    enum State {
+        WAITING,
+        RUNNING,
+        FINISHED,
+        FAILED
+    }
+
+    private volatile String name;
+
+    private volatile State state = State.WAITING;
+
+    private volatile int totalPages;
+
+    final AtomicInteger pages = new AtomicInteger();
+
+    final LongAdder downloaded = new LongAdder();
+
+    final LongAdder skipped = new LongAdder();
+
+    final LongAdder failed = new LongAdder();
+
+    final LongAdder bytes = new LongAdder();
+
+    /**
+     * @param name 相册名称，获取到相册信息之前可以先使用相册的 URL
+     */
+    AlbumProgress(String name) {
+        this.name = name;
+    }
+
+    void start(String name) {
+        this.name = name;
+        this.state = State.RUNNING;
+    }
+
+    void setTotalPages(int totalPages) {
+        this.totalPages = totalPages;
+    }
+
+    void finish(boolean success) {
+        state = success ? State.FINISHED : State.FAILED;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    State getState() {
+        return state;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: page %d/%d, %d downloaded, %d skipped, %d failed, %.1f MB (%s)",
+                name, pages.get(), totalPages, downloaded.sum(), skipped.sum(), failed.sum(),
+                bytes.sum() / 1024.0 / 1024.0, state.name().toLowerCase(Locale.ROOT));
+    }
+}
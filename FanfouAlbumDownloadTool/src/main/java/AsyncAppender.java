@@ -0,0 +1,125 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * 在后台线程中批量写入日志
+ * <p>
+ * 下载线程只把日志放入队列，不等待写入文件；后台线程每次取出队列中所有的日志，
+ * 一起写入文件后只 flush 一次。队列满了之后，下载线程会等待，避免日志占用过多的内存。
+ */
+final class AsyncAppender implements Closeable {
+
+    private static final int CAPACITY = 8192;
+
+    private static final int BATCH_SIZE = 512;
+
+    /**
+     * 队列结束的标记
+     */
+    private static final String END = new String("END");
+
+    private final BlockingQueue<String> queue = new ArrayBlockingQueue<>(CAPACITY);
+
+    private final Writer writer;
+
+    /**
+     * 是否同时输出到控制台
+     */
+    private final boolean echo;
+
+    private final Thread thread;
+
+    private AsyncAppender(Writer writer, boolean echo, String name) {
+        this.writer = writer;
+        this.echo = echo;
+        this.thread = new Thread(this::run, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * @param file 追加写入的文件
+     * @param echo 是否同时输出到控制台
+     */
+    static AsyncAppender open(File file, boolean echo) throws IOException {
+        Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        return new AsyncAppender(writer, echo, "log-" + file.getName());
+    }
+
+    void append(String line) {
+        try {
+            queue.put(line);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        List<String> batch = new ArrayList<>(BATCH_SIZE);
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch, BATCH_SIZE - 1);
+                boolean end = write(batch);
+                batch.clear();
+                if (end) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            // 被强制关闭
+        }
+    }
+
+    /**
+     * @return 是否遇到了结束标记
+     */
+    private boolean write(List<String> batch) {
+        StringBuilder sb = new StringBuilder();
+        boolean end = false;
+        for (String line : batch) {
+            if (line == END) {
+                end = true;
+                break;
+            }
+            sb.append(line).append(System.lineSeparator());
+        }
+
+        if (echo) {
+            System.out.print(sb);
+        }
+        try {
+            writer.write(sb.toString());
+            writer.flush();
+        } catch (IOException e) {
+            System.err.println("Fail to write log: " + e.getMessage());
+        }
+        return end;
+    }
+
+    /**
+     * 写入队列中剩余的日志后关闭文件
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            queue.put(END);
+            thread.join();
+        } catch (InterruptedException e) {
+            thread.interrupt();
+            Thread.currentThread().interrupt();
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,349 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 并发下载引擎
+ * <p>
+ * 所有任务都在同一个线程池中执行（JDK 21 及以上使用虚拟线程，否则使用固定大小的线程池），
+ * 并且按照 host 分别限制并发数和请求速率：相册页面和照片 CDN 互不影响，
+ * 某个 host 的等待也不会阻塞其他 host 的下载。
+ * <p>
+ * 每个 host 的请求速率由 {@link RateLimiter} 根据该 host 的响应自动调整。
+ * <p>
+ * 同时下载多个相册时，所有相册共用同一个引擎（连接池、并发数和请求速率），
+ * 照片的下载任务由 {@link FairScheduler} 按相册轮流执行。
+ */
+final class DownloadEngine implements AutoCloseable {
+
+    private final ExecutorService executor;
+
+    /**
+     * 所有相册共享的并发上限（虚拟线程本身没有数量限制，所以需要额外限制）
+     */
+    private final FairScheduler scheduler;
+
+    private final Map<String, HostGate> hostGates = new ConcurrentHashMap<>();
+
+    private final DownloadOptions options;
+
+    private final HttpTransport transport;
+
+    private final PhotoFetcher photoFetcher;
+
+    private final RetryPolicy retryPolicy;
+
+    /**
+     * 按照内容去重的照片库，没有开启去重时为 null
+     */
+    private final PhotoStore photoStore;
+
+    private final DownloadMetrics metrics = new DownloadMetrics();
+
+    /**
+     * 定时输出统计信息，没有开启时为 null
+     */
+    private final ScheduledExecutorService reporter;
+
+    DownloadEngine(DownloadOptions options) throws IOException {
+        this.options = options;
+        this.retryPolicy = new RetryPolicy(options.maxAttempts, options.retryBackoffMillis);
+        this.transport = new HttpTransport(this::onResponse);
+        this.photoFetcher = new PhotoFetcher(transport, options.bufferSize, options.chunks, options.chunkThreshold,
+                url -> getGate(url, options.photoHostLimit, options.photoRate));
+        this.photoStore = options.dedup ? PhotoStore.open(new File(options.dedupIndex)) : null;
+        int workers = Math.max(1, options.workers);
+        this.executor = newWorkerPool(workers);
+        this.scheduler = new FairScheduler(executor, workers);
+        this.reporter = options.metricsInterval > 0 ? startReporter(options.metricsInterval) : null;
+    }
+
+    /**
+     * 在当前线程中获取相册页面，受到页面所在 host 的并发数和请求间隔的限制
+     *
+     * @param pageUrl 页面的 URL
+     * @param task    获取页面的任务
+     * @return 任务的返回值
+     */
+    <T> T fetchPage(String pageUrl, PageTask<T> task) throws IOException, InterruptedException {
+        HostGate gate = getGate(pageUrl, options.pageHostLimit, options.pageRate);
+        gate.acquire();
+        try {
+            return task.call();
+        } finally {
+            gate.release();
+        }
+    }
+
+    /**
+     * 提交一个下载照片的任务，受到照片所在 host 的并发数和请求速率的限制。
+     * <p>
+     * 失败时根据 {@link RetryPolicy} 重试，等待重试的期间不占用线程和并发数。
+     *
+     * @param albumName 照片所属的相册，不同相册的任务轮流执行
+     * @param photoUrl  照片的 URL
+     * @param task      下载照片的任务
+     * @return 任务成功时正常结束；所有重试都失败时，以 {@link PhotoFailure} 异常结束
+     */
+    CompletableFuture<Void> submitPhoto(String albumName, String photoUrl, PhotoTask task) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        submitPhoto(albumName, photoUrl, task, 1, result);
+        return result;
+    }
+
+    private void submitPhoto(String albumName,
+                             String photoUrl,
+                             PhotoTask task,
+                             int attempt,
+                             CompletableFuture<Void> result) {
+        HostGate gate = getGate(photoUrl, options.photoHostLimit, options.photoRate);
+        scheduler.submit(albumName, () -> {
+            Throwable error = null;
+            try {
+                gate.acquire();
+                try {
+                    task.run(attempt);
+                } finally {
+                    gate.release();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                error = e;
+            } catch (IOException | RuntimeException e) {
+                error = e;
+            }
+            onPhotoFinished(albumName, photoUrl, task, attempt, result, error);
+        }, rejected -> result.completeExceptionally(new PhotoFailure(attempt, rejected)));
+    }
+
+    private void onPhotoFinished(String albumName,
+                                 String photoUrl,
+                                 PhotoTask task,
+                                 int attempt,
+                                 CompletableFuture<Void> result,
+                                 Throwable error) {
+        if (error == null) {
+            result.complete(null);
+            return;
+        }
+
+        if (!retryPolicy.shouldRetry(error, attempt)) {
+            result.completeExceptionally(new PhotoFailure(attempt, error));
+            return;
+        }
+
+        long backoff = retryPolicy.getBackoffMillis(attempt);
+        try {
+            CompletableFuture.delayedExecutor(backoff, TimeUnit.MILLISECONDS, executor)
+                    .execute(() -> submitPhoto(albumName, photoUrl, task, attempt + 1, result));
+        } catch (RejectedExecutionException rejected) {
+            result.completeExceptionally(new PhotoFailure(attempt, error));
+        }
+    }
+
+    private ScheduledExecutorService startReporter(int intervalSeconds) {
+        ScheduledExecutorService service = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "metrics-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        service.scheduleAtFixedRate(() -> System.out.println("Metrics: " + metrics.formatInterval()),
+                intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        return service;
+    }
+
+    private HostGate getGate(String url, int limit, double initialRate) {
+        return hostGates.computeIfAbsent(getHost(url), host -> new HostGate(limit,
+                new RateLimiter(initialRate, options.minRate, options.maxRate)));
+    }
+
+    /**
+     * 根据响应调整相应 host 的请求速率
+     */
+    private void onResponse(String url, int status, long latencyNanos, long retryAfterMillis) {
+        String host = getHost(url);
+        HostGate gate = hostGates.get(host);
+        if (gate != null && gate.limiter.onResponse(status, latencyNanos, retryAfterMillis)) {
+            System.out.printf("Slow down %s: status %d, rate %.2f/s%n",
+                    host, status, gate.limiter.getRate());
+        }
+    }
+
+    /**
+     * @return 每个 host 当前的请求速率（次/秒）
+     */
+    Map<String, Double> getRates() {
+        Map<String, Double> rates = new TreeMap<>();
+        hostGates.forEach((host, gate) -> rates.put(host, gate.limiter.getRate()));
+        return rates;
+    }
+
+    private static String getHost(String url) {
+        try {
+            String host = URI.create(url).getHost();
+            return host == null ? "" : host;
+        } catch (IllegalArgumentException e) {
+            return "";
+        }
+    }
+
+    DownloadOptions getOptions() {
+        return options;
+    }
+
+    HttpTransport getTransport() {
+        return transport;
+    }
+
+    PhotoFetcher getPhotoFetcher() {
+        return photoFetcher;
+    }
+
+    DownloadMetrics getMetrics() {
+        return metrics;
+    }
+
+    PhotoStore getPhotoStore() {
+        return photoStore;
+    }
+
+    @Override
+    public void close() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+        }
+        executor.shutdown();
+        try {
+            // 等待已提交的任务执行完毕
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                System.out.println("Waiting for unfinished downloads...");
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        } finally {
+            photoFetcher.close();
+            closePhotoStore();
+            System.out.println("Summary: " + metrics.formatSummary());
+        }
+    }
+
+    private void closePhotoStore() {
+        if (photoStore == null) {
+            return;
+        }
+        try {
+            photoStore.close();
+        } catch (IOException e) {
+            System.err.println("Fail to close photo index: " + e.getMessage());
+        }
+    }
+
+    /**
+     * JDK 21 及以上使用虚拟线程，否则使用固定大小的线程池。
+     * 因为编译目标为 JDK 11，所以通过反射获取虚拟线程的线程池
+     */
+    private static ExecutorService newWorkerPool(int workers) {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return Executors.newFixedThreadPool(workers);
+        }
+    }
+
+    /**
+     * 下载照片的任务
+     */
+    @FunctionalInterface
+    interface PhotoTask {
+
+        /**
+         * @param attempt 第几次尝试，从 1 开始
+         */
+        void run(int attempt) throws IOException;
+    }
+
+    /**
+     * 重试之后仍然下载失败
+     */
+    static final class PhotoFailure extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * 一共尝试了几次
+         */
+        final int attempts;
+
+        PhotoFailure(int attempts, Throwable cause) {
+            super(cause + " (after " + attempts + " attempts)", cause);
+            this.attempts = attempts;
+        }
+
+        static PhotoFailure of(Throwable e) {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            return cause instanceof PhotoFailure ? (PhotoFailure) cause : new PhotoFailure(1, cause);
+        }
+    }
+
+    /**
+     * 获取页面的任务
+     */
+    @FunctionalInterface
+    interface PageTask<T> {
+        T call() throws IOException, InterruptedException;
+    }
+
+    /**
+     * 单个 host 的并发数和请求速率的限制
+     */
+    private static final class HostGate implements PhotoFetcher.HostLimit {
+
+        private final Semaphore permits;
+
+        private final RateLimiter limiter;
+
+        HostGate(int limit, RateLimiter limiter) {
+            this.permits = new Semaphore(Math.max(1, limit));
+            this.limiter = limiter;
+        }
+
+        void acquire() throws InterruptedException {
+            permits.acquire();
+            try {
+                pace();
+            } catch (InterruptedException e) {
+                permits.release();
+                throw e;
+            }
+        }
+
+        @Override
+        public boolean tryAcquire() {
+            return permits.tryAcquire();
+        }
+
+        @Override
+        public void release() {
+            permits.release();
+        }
+
+        @Override
+        public void pace() throws InterruptedException {
+            TimeUnit.NANOSECONDS.sleep(limiter.reserve());
+        }
+    }
+}
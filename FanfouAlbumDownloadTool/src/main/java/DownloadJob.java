@@ -0,0 +1,25 @@
+/**
+ * 批量下载时，任务文件中的一行：需要下载的相册和页数
+ */
+final class DownloadJob {
+
+    /**
+     * 下载到相册的最后一页，最后一页会自动查找
+     */
+    static final int LAST_PAGE = 0;
+
+    final String albumUrl;
+
+    final int from;
+
+    /**
+     * 结束页，为 {@link #LAST_PAGE} 时下载到最后一页
+     */
+    final int to;
+
+    DownloadJob(String albumUrl, int from, int to) {
+        this.albumUrl = albumUrl;
+        this.from = from;
+        this.to = to;
+    }
+}
@@ -0,0 +1,216 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 相册的下载进度
+ * <p>
+ * 以 JSON Lines 的格式追加写入文件，每一行记录一张照片的状态，后写入的行覆盖先写入的行。
+ * <p>
+ * 只按照片的 URL 记录进度，不记录页面：相册中新增照片后，所有照片都会向后移动，
+ * 同一页中的照片会发生变化，所以每次运行都会重新获取页面，只跳过已经下载完成的照片。
+ * 启动时读取整个文件，在内存中保存每个 URL 的最新状态，所以查询的时间复杂度为 O(1)。
+ * 中途退出时，最后一行可能只写入了一半，读取时会忽略无法解析的行。
+ */
+final class DownloadManifest implements Closeable {
+
+    enum State {
+        /**
+         * 已经获取到 URL，还没有开始下载
+         */
+        PENDING,
+        /**
+         * 正在下载，中途退出时文件可能不完整
+         */
+        IN_FLIGHT,
+        DONE,
+        FAILED
+    }
+
+    /**
+     * 一张照片的状态
+     */
+    static final class Entry {
+
+        final State state;
+
+        final long bytes;
+
+        final String sha256;
+
+        Entry(State state, long bytes, String sha256) {
+            this.state = state;
+            this.bytes = bytes;
+            this.sha256 = sha256;
+        }
+    }
+
+    /**
+     * 行数超过有效记录数的倍数时，在启动时压缩文件
+     */
+    private static final int COMPACT_RATIO = 2;
+
+    private final Path path;
+
+    private final Map<String, Entry> photos = new ConcurrentHashMap<>();
+
+    private Writer writer;
+
+    private DownloadManifest(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * 读取相册的下载进度，文件不存在时创建新的文件
+     *
+     * @param file 保存下载进度的文件
+     * @return 相册的下载进度
+     */
+    static DownloadManifest open(File file) throws IOException {
+        DownloadManifest manifest = new DownloadManifest(file.toPath());
+        int lines = manifest.load();
+        if (lines > COMPACT_RATIO * manifest.photos.size()) {
+            manifest.compact();
+        }
+        manifest.writer = Files.newBufferedWriter(manifest.path, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        return manifest;
+    }
+
+    private int load() throws IOException {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+
+        int count = 0;
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                count++;
+                apply(line);
+            }
+        }
+        return count;
+    }
+
+    private void apply(String line) {
+        Map<String, String> fields = JsonLines.parseLine(line);
+        if (fields == null) {
+            return;
+        }
+        try {
+            if (fields.containsKey("page")) {
+                // 旧版本记录的页面状态，已经不再使用，压缩时会被删除
+                return;
+            }
+            String url = fields.get("url");
+            State state = State.valueOf(fields.get("state"));
+            long bytes = Long.parseLong(fields.getOrDefault("bytes", "0"));
+            photos.put(url, new Entry(state, bytes, fields.get("sha256")));
+        } catch (IllegalArgumentException | NullPointerException e) {
+            // 忽略不完整的行
+        }
+    }
+
+    /**
+     * 只保留每个 URL 的最新状态，重写文件
+     */
+    private void compact() throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Entry> e : photos.entrySet()) {
+                out.write(toLine(e.getKey(), e.getValue()));
+                out.newLine();
+            }
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    Entry get(String url) {
+        return photos.get(url);
+    }
+
+    /**
+     * 照片是否已经完整下载：状态为 {@link State#DONE}，并且文件的大小和记录的一致
+     *
+     * @param url  照片的 URL
+     * @param file 照片的文件
+     * @return 是否已经完整下载
+     */
+    boolean isDone(String url, File file) {
+        Entry entry = photos.get(url);
+        return entry != null
+                && entry.state == State.DONE
+                && file.length() == entry.bytes;
+    }
+
+    /**
+     * 照片是否曾经开始下载过（包括下载中、下载完成和下载失败）
+     */
+    boolean isStarted(String url) {
+        Entry entry = photos.get(url);
+        return entry != null && entry.state != State.PENDING;
+    }
+
+    void pending(String url) {
+        // 已经有状态的 URL 不需要再标记
+        if (photos.putIfAbsent(url, new Entry(State.PENDING, 0, null)) == null) {
+            append(toLine(url, photos.get(url)));
+        }
+    }
+
+    void inFlight(String url) {
+        update(url, new Entry(State.IN_FLIGHT, 0, null));
+    }
+
+    void done(String url, long bytes, String sha256) {
+        update(url, new Entry(State.DONE, bytes, sha256));
+    }
+
+    void failed(String url) {
+        update(url, new Entry(State.FAILED, 0, null));
+    }
+
+    private void update(String url, Entry entry) {
+        photos.put(url, entry);
+        append(toLine(url, entry));
+    }
+
+    private synchronized void append(String line) {
+        try {
+            writer.write(line);
+            writer.write(System.lineSeparator());
+            // 每一行都写入文件，保证中途退出时不会丢失进度
+            writer.flush();
+        } catch (IOException e) {
+            System.err.println("Fail to write manifest: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+
+    private static String toLine(String url, Entry entry) {
+        StringBuilder sb = new StringBuilder(url.length() + 96);
+        sb.append("{\"url\":").append(JsonLines.quote(url))
+                .append(",\"state\":\"").append(entry.state.name()).append('"');
+        if (entry.state == State.DONE) {
+            sb.append(",\"bytes\":").append(entry.bytes);
+            if (entry.sha256 != null) {
+                sb.append(",\"sha256\":\"").append(entry.sha256).append('"');
+            }
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,188 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 下载照片的统计信息：吞吐量、每秒下载的照片数、延迟的分位数和错误率
+ * <p>
+ * 延迟使用对数分桶的直方图统计：每个 2 的幂次的区间再平均分为 {@link #SUB_BUCKETS} 个桶，
+ * 记录时只需要对一个桶加一，不需要保存每一次的延迟，分位数的相对误差不超过 1 / {@link #SUB_BUCKETS}。
+ * <p>
+ * 直方图是累计的，每次输出时保存一份各个桶的计数，两次输出之间的分位数使用两份计数的差计算，
+ * 所以 {@link #formatInterval()} 中的延迟和错误率只包含这段时间内的请求。
+ */
+final class DownloadMetrics {
+
+    private static final int SUB_BUCKETS = 8;
+
+    /**
+     * 最多统计到 2^31 毫秒
+     */
+    private static final int BUCKETS = 32 * SUB_BUCKETS;
+
+    private final long startNanos = System.nanoTime();
+
+    private final LongAdder bytes = new LongAdder();
+
+    private final LongAdder photos = new LongAdder();
+
+    private final LongAdder attempts = new LongAdder();
+
+    private final LongAdder errors = new LongAdder();
+
+    /**
+     * 每次请求的延迟（毫秒）的直方图
+     */
+    private final AtomicLongArray latencies = new AtomicLongArray(BUCKETS);
+
+    /**
+     * 上一次输出时的统计信息，用于计算这段时间内的速率
+     */
+    private Snapshot last = Snapshot.empty(startNanos);
+
+    /**
+     * 记录一次成功的下载
+     */
+    void recordSuccess(long bytes, long latencyNanos) {
+        this.bytes.add(bytes);
+        photos.increment();
+        attempts.increment();
+        recordLatency(latencyNanos);
+    }
+
+    /**
+     * 记录一次失败的下载（包括之后会重试的失败）
+     */
+    void recordError(long latencyNanos) {
+        errors.increment();
+        attempts.increment();
+        recordLatency(latencyNanos);
+    }
+
+    private void recordLatency(long latencyNanos) {
+        latencies.incrementAndGet(bucketOf(TimeUnit.NANOSECONDS.toMillis(latencyNanos)));
+    }
+
+    private static int bucketOf(long millis) {
+        if (millis < SUB_BUCKETS) {
+            return (int) Math.max(0, millis);
+        }
+        // 最高位所在的位置决定区间，接下来的 3 位决定区间中的桶
+        int exponent = 63 - Long.numberOfLeadingZeros(millis);
+        int shift = exponent - Integer.numberOfTrailingZeros(SUB_BUCKETS);
+        int sub = (int) (millis >>> shift) - SUB_BUCKETS;
+        return Math.min(BUCKETS - 1, (shift + 1) * SUB_BUCKETS + sub);
+    }
+
+    /**
+     * @return 桶的上限（毫秒）
+     */
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long sub = bucket % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * @param counts   直方图中每个桶的计数
+     * @param quantile 0 到 1 之间
+     * @return 延迟的分位数（毫秒），没有记录时为 0
+     */
+    private static long getLatencyMillis(long[] counts, double quantile) {
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= Math.max(1, rank)) {
+                return upperBoundOf(i);
+            }
+        }
+        return upperBoundOf(BUCKETS - 1);
+    }
+
+    /**
+     * @return 上一次调用之后这段时间内的统计信息
+     */
+    synchronized String formatInterval() {
+        Snapshot now = snapshot();
+        String s = format(now, last);
+        last = now;
+        return s;
+    }
+
+    /**
+     * @return 从开始到现在的统计信息
+     */
+    String formatSummary() {
+        return format(snapshot(), Snapshot.empty(startNanos));
+    }
+
+    private Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = latencies.get(i);
+        }
+        return new Snapshot(System.nanoTime(), bytes.sum(), photos.sum(), attempts.sum(), errors.sum(), counts);
+    }
+
+    /**
+     * @return {@code since} 到 {@code now} 之间的速率、延迟和错误率，以及到 {@code now} 为止的总数
+     */
+    private static String format(Snapshot now, Snapshot since) {
+        double seconds = Math.max(1e-3, (now.nanos - since.nanos) / 1e9);
+        long attemptCount = now.attempts - since.attempts;
+        double errorRate = attemptCount == 0 ? 0 : 100.0 * (now.errors - since.errors) / attemptCount;
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = now.latencies[i] - since.latencies[i];
+        }
+        return String.format("%.2f MB/s, %.2f photos/s, latency p50 %d ms p99 %d ms, error rate %.1f%% "
+                        + "(%d photos, %.1f MB, %d errors in total)",
+                (now.bytes - since.bytes) / 1024.0 / 1024.0 / seconds,
+                (now.photos - since.photos) / seconds,
+                getLatencyMillis(counts, 0.5), getLatencyMillis(counts, 0.99), errorRate,
+                now.photos, now.bytes / 1024.0 / 1024.0, now.errors);
+    }
+
+    private static final class Snapshot {
+
+        final long nanos;
+
+        final long bytes;
+
+        final long photos;
+
+        final long attempts;
+
+        final long errors;
+
+        /**
+         * 直方图中每个桶的计数
+         */
+        final long[] latencies;
+
+        Snapshot(long nanos, long bytes, long photos, long attempts, long errors, long[] latencies) {
+            this.nanos = nanos;
+            this.bytes = bytes;
+            this.photos = photos;
+            this.attempts = attempts;
+            this.errors = errors;
+            this.latencies = latencies;
+        }
+
+        static Snapshot empty(long nanos) {
+            return new Snapshot(nanos, 0, 0, 0, 0, new long[BUCKETS]);
+        }
+    }
+}
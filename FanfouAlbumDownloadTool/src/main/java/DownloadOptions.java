@@ -0,0 +1,280 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * 下载工具的运行参数，从命令行的 {@code --name=value} 形式的参数中读取
+ * <p>
+ * 读取时每个参数都会从参数的 Map 中取出，最后剩下的就是无法识别的参数，例如拼写错误的参数名。
+ */
+final class DownloadOptions {
+
+    /**
+     * 边读取边解析相册页面
+     */
+    static final String PARSER_STREAM = "stream";
+
+    /**
+     * 使用 jsoup 构建完整的 DOM 后再解析相册页面
+     */
+    static final String PARSER_DOM = "dom";
+
+    /**
+     * 同时执行下载任务的线程数
+     */
+    int workers = 8;
+
+    /**
+     * 相册页面（HTML）所在 host 的最大并发数
+     */
+    int pageHostLimit = 1;
+
+    /**
+     * 照片（CDN）所在 host 的最大并发数
+     */
+    int photoHostLimit = 4;
+
+    /**
+     * 相册页面所在 host 的初始请求速率（次/秒）
+     */
+    double pageRate = 2;
+
+    /**
+     * 照片所在 host 的初始请求速率（次/秒）
+     */
+    double photoRate = 1;
+
+    /**
+     * 每个 host 的最低请求速率（次/秒）
+     */
+    double minRate = 0.1;
+
+    /**
+     * 每个 host 的最高请求速率（次/秒）
+     */
+    double maxRate = 10;
+
+    /**
+     * 提前获取的相册页面数，也是同时在下载照片的最大页面数
+     */
+    int prefetchPages = 2;
+
+    /**
+     * 同时获取的相册页面数（还会受到 {@link #pageHostLimit} 的限制）
+     */
+    int pageParallelism = 2;
+
+    /**
+     * 下载照片时使用的缓冲区大小（字节）
+     */
+    int bufferSize = 64 * 1024;
+
+    /**
+     * 较大的照片分为几块并发下载，小于 2 表示不分块
+     */
+    int chunks = 1;
+
+    /**
+     * 大于等于这个大小（字节）的照片才分块下载
+     */
+    int chunkThreshold = 4 * 1024 * 1024;
+
+    /**
+     * 每张照片最多尝试下载几次
+     */
+    int maxAttempts = 3;
+
+    /**
+     * 第一次重试前等待的时间（毫秒），之后每次翻倍
+     */
+    int retryBackoffMillis = 2000;
+
+    /**
+     * 下载结束后，是否重新下载失败的照片
+     */
+    boolean retryFailed = false;
+
+    /**
+     * 解析相册页面的方式：{@link #PARSER_STREAM} 或 {@link #PARSER_DOM}
+     */
+    String parser = PARSER_STREAM;
+
+    /**
+     * 增量同步：只下载上一次同步之后新增的照片
+     */
+    boolean sync = false;
+
+    /**
+     * 是否按照内容去重，相同的照片只保存一份，其他位置使用硬链接
+     */
+    boolean dedup = false;
+
+    /**
+     * 去重时使用的索引文件
+     */
+    String dedupIndex = "photos.index.jsonl";
+
+    /**
+     * 输出下载速度、延迟和错误率等统计信息的间隔（秒），0 表示只在结束时输出
+     */
+    int metricsInterval = 30;
+
+    /**
+     * 批量下载的任务文件，为 null 时在命令行中交互输入
+     */
+    String jobs;
+
+    /**
+     * 批量下载时，保存 cookie 的文件
+     */
+    String cookieFile;
+
+    /**
+     * 批量下载时，同时下载的相册数
+     */
+    int parallelAlbums = 3;
+
+    /**
+     * 批量下载时，输出汇总进度的间隔（秒）
+     */
+    int progressInterval = 10;
+
+    static DownloadOptions parse(String[] args) {
+        Map<String, String> map = toMap(args);
+        DownloadOptions options = new DownloadOptions();
+        options.workers = getInt(map, "workers", options.workers);
+        options.pageHostLimit = getInt(map, "page-host-limit", options.pageHostLimit);
+        options.photoHostLimit = getInt(map, "photo-host-limit", options.photoHostLimit);
+        // 记录哪些速率是命令行中指定的，只检查指定的速率，默认值会被限制在指定的范围内
+        boolean pageRateSet = map.containsKey("page-rate");
+        boolean photoRateSet = map.containsKey("photo-rate");
+        boolean minRateSet = map.containsKey("min-rate");
+        boolean maxRateSet = map.containsKey("max-rate");
+        options.pageRate = getDouble(map, "page-rate", options.pageRate);
+        options.photoRate = getDouble(map, "photo-rate", options.photoRate);
+        options.minRate = getDouble(map, "min-rate", options.minRate);
+        options.maxRate = getDouble(map, "max-rate", options.maxRate);
+        options.prefetchPages = getInt(map, "prefetch-pages", options.prefetchPages);
+        options.pageParallelism = getInt(map, "page-parallelism", options.pageParallelism);
+        options.bufferSize = getInt(map, "buffer-size", options.bufferSize);
+        options.chunks = getInt(map, "chunks", options.chunks);
+        options.chunkThreshold = getInt(map, "chunk-threshold", options.chunkThreshold);
+        options.maxAttempts = getInt(map, "max-attempts", options.maxAttempts);
+        options.retryBackoffMillis = getInt(map, "retry-backoff", options.retryBackoffMillis);
+        options.retryFailed = getBoolean(map, "retry-failed", options.retryFailed);
+        options.parser = getString(map, "parser", options.parser);
+        if (!PARSER_STREAM.equals(options.parser) && !PARSER_DOM.equals(options.parser)) {
+            throw new IllegalArgumentException("--parser must be " + PARSER_STREAM + " or " + PARSER_DOM);
+        }
+        options.sync = getBoolean(map, "sync", options.sync);
+        options.dedup = getBoolean(map, "dedup", options.dedup);
+        options.dedupIndex = getString(map, "dedup-index", options.dedupIndex);
+        options.metricsInterval = getInt(map, "metrics-interval", options.metricsInterval);
+        options.jobs = getString(map, "jobs", options.jobs);
+        options.cookieFile = getString(map, "cookie-file", options.cookieFile);
+        options.parallelAlbums = Math.max(1, getInt(map, "parallel-albums", options.parallelAlbums));
+        options.progressInterval = Math.max(1, getInt(map, "progress-interval", options.progressInterval));
+
+        if (!map.isEmpty()) {
+            throw new IllegalArgumentException("Unknown option: --" + String.join(", --", new TreeSet<>(map.keySet())));
+        }
+        options.validateRates(pageRateSet, photoRateSet, minRateSet, maxRateSet);
+        return options;
+    }
+
+    /**
+     * 保证 {@code minRate <= pageRate, photoRate <= maxRate}
+     * <p>
+     * 只有命令行中指定的速率不满足条件时才报错，没有指定的速率（默认值）会被调整到范围内，
+     * 例如只指定 {@code --max-rate=1} 时，页面的初始速率从默认的 2 降为 1。
+     */
+    private void validateRates(boolean pageRateSet, boolean photoRateSet, boolean minRateSet, boolean maxRateSet) {
+        if (minRate > maxRate) {
+            if (minRateSet && maxRateSet) {
+                throw new IllegalArgumentException("--min-rate (" + minRate + ") must not be greater than --max-rate ("
+                        + maxRate + ")");
+            }
+            if (minRateSet) {
+                maxRate = minRate;
+            } else {
+                minRate = maxRate;
+            }
+        }
+        pageRate = validateRate("page-rate", pageRate, pageRateSet);
+        photoRate = validateRate("photo-rate", photoRate, photoRateSet);
+    }
+
+    /**
+     * @param set 是否是命令行中指定的速率
+     * @return 范围内的速率
+     */
+    private double validateRate(String name, double rate, boolean set) {
+        if (rate >= minRate && rate <= maxRate) {
+            return rate;
+        }
+        if (set) {
+            throw new IllegalArgumentException("--" + name + " (" + rate + ") must be between --min-rate ("
+                    + minRate + ") and --max-rate (" + maxRate + ")");
+        }
+        return Math.min(Math.max(rate, minRate), maxRate);
+    }
+
+    private static Map<String, String> toMap(String[] args) {
+        Map<String, String> map = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+            int index = arg.indexOf('=');
+            if (index < 0) {
+                // 没有值的参数当作开关
+                map.put(arg.substring(2), "true");
+            } else {
+                map.put(arg.substring(2, index), arg.substring(index + 1));
+            }
+        }
+        return map;
+    }
+
+    private static String getString(Map<String, String> map, String name, String defaultValue) {
+        String value = map.remove(name);
+        return value == null ? defaultValue : value;
+    }
+
+    private static boolean getBoolean(Map<String, String> map, String name, boolean defaultValue) {
+        String value = map.remove(name);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+
+    private static double getDouble(Map<String, String> map, String name, double defaultValue) {
+        String value = map.remove(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            double d = Double.parseDouble(value.trim());
+            if (!(d > 0)) {
+                throw new IllegalArgumentException("--" + name + " must be positive");
+            }
+            return d;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("--" + name + " must be a number: " + value);
+        }
+    }
+
+    private static int getInt(Map<String, String> map, String name, int defaultValue) {
+        String value = map.remove(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            int i = Integer.parseInt(value.trim());
+            if (i < 0) {
+                throw new IllegalArgumentException("--" + name + " must not be negative");
+            }
+            return i;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("--" + name + " must be an integer: " + value);
+        }
+    }
+}
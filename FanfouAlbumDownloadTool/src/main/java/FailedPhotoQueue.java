@@ -0,0 +1,140 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 重试之后仍然下载失败的照片（死信队列）
+ * <p>
+ * 以 JSON Lines 的格式追加写入文件，使用 {@code --retry-failed} 运行时，
+ * 会在下载结束后取出所有记录并重新下载。
+ * <p>
+ * 重新下载期间，再次失败的照片写入临时文件，原来的文件保持不变，
+ * 重新下载结束后才用临时文件替换原来的文件，所以中途退出时不会丢失记录。
+ */
+final class FailedPhotoQueue implements Closeable {
+
+    /**
+     * 一张下载失败的照片
+     */
+    static final class FailedPhoto {
+
+        final String url;
+
+        final int attempts;
+
+        final String reason;
+
+        FailedPhoto(String url, int attempts, String reason) {
+            this.url = url;
+            this.attempts = attempts;
+            this.reason = reason;
+        }
+    }
+
+    private final Path path;
+
+    /**
+     * 重新下载期间写入的临时文件
+     */
+    private final Path temp;
+
+    private BufferedWriter writer;
+
+    /**
+     * 是否正在重新下载，这时 {@link #writer} 写入的是 {@link #temp}
+     */
+    private boolean draining;
+
+    private FailedPhotoQueue(Path path) {
+        this.path = path;
+        this.temp = path.resolveSibling(path.getFileName() + ".tmp");
+    }
+
+    static FailedPhotoQueue open(File file) throws IOException {
+        FailedPhotoQueue queue = new FailedPhotoQueue(file.toPath());
+        queue.writer = newWriter(queue.path, StandardOpenOption.APPEND);
+        return queue;
+    }
+
+    private static BufferedWriter newWriter(Path file, StandardOpenOption mode) throws IOException {
+        return Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, mode);
+    }
+
+    synchronized void add(String url, int attempts, String reason) {
+        try {
+            writer.write("{\"url\":" + JsonLines.quote(url)
+                    + ",\"attempts\":" + attempts
+                    + ",\"reason\":" + JsonLines.quote(String.valueOf(reason)) + "}");
+            writer.newLine();
+            writer.flush();
+        } catch (IOException e) {
+            System.err.println("Fail to write failed photo: " + url);
+        }
+    }
+
+    /**
+     * 取出所有下载失败的照片，之后的记录写入临时文件，直到调用 {@link #finishDrain()}
+     *
+     * @return 下载失败的照片，同一个 URL 只保留最后一条记录
+     */
+    synchronized List<FailedPhoto> drain() throws IOException {
+        if (draining) {
+            throw new IllegalStateException("Failed photos are being retried");
+        }
+        writer.close();
+
+        Map<String, FailedPhoto> photos = new LinkedHashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                Map<String, String> fields = JsonLines.parseLine(line);
+                if (fields == null || fields.get("url") == null) {
+                    continue;
+                }
+                String url = fields.get("url");
+                int attempts;
+                try {
+                    attempts = Integer.parseInt(fields.getOrDefault("attempts", "0"));
+                } catch (NumberFormatException e) {
+                    // 次数只用于统计，照片仍然需要重新下载
+                    System.err.println("Invalid attempts of failed photo, using 0: " + line);
+                    attempts = 0;
+                }
+                photos.put(url, new FailedPhoto(url, attempts, fields.get("reason")));
+            }
+        }
+
+        writer = newWriter(temp, StandardOpenOption.TRUNCATE_EXISTING);
+        draining = true;
+        return new ArrayList<>(photos.values());
+    }
+
+    /**
+     * 重新下载结束后调用：用重新下载期间的记录替换原来的文件
+     */
+    synchronized void finishDrain() throws IOException {
+        if (!draining) {
+            return;
+        }
+        writer.close();
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        draining = false;
+        writer = newWriter(path, StandardOpenOption.APPEND);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+}
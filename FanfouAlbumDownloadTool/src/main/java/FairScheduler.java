@@ -0,0 +1,124 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * 按相册轮流执行任务的调度器
+ * <p>
+ * 每个相册有自己的等待队列，有空闲的位置时，按相册轮流取出任务执行。
+ * 同时下载多个相册时，不会因为某个相册先提交了大量照片，导致其他相册一直等待。
+ * <p>
+ * 取出的任务被线程池拒绝时（例如线程池已经关闭），调用这个任务自己的 {@code onRejected}，
+ * 而不是把异常抛给碰巧触发调度的调用者，这样每个任务都一定会执行或者被通知拒绝。
+ */
+final class FairScheduler {
+
+    private final Executor executor;
+
+    private final int maxRunning;
+
+    /**
+     * 每个相册等待执行的任务
+     */
+    private final Map<String, Deque<Task>> queues = new HashMap<>();
+
+    /**
+     * 有任务在等待的相册，按轮流的顺序排列
+     */
+    private final Deque<String> ring = new ArrayDeque<>();
+
+    private int running;
+
+    FairScheduler(Executor executor, int maxRunning) {
+        this.executor = executor;
+        this.maxRunning = Math.max(1, maxRunning);
+    }
+
+    /**
+     * 提交任务
+     *
+     * @param key        任务所属的相册
+     * @param task       任务
+     * @param onRejected 任务被线程池拒绝时调用，不在调度器的锁中调用
+     */
+    void submit(String key, Runnable task, Consumer<RejectedExecutionException> onRejected) {
+        List<Runnable> rejected;
+        synchronized (this) {
+            Deque<Task> queue = queues.get(key);
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                queues.put(key, queue);
+                ring.add(key);
+            }
+            queue.add(new Task(task, onRejected));
+            rejected = dispatch();
+        }
+        rejected.forEach(Runnable::run);
+    }
+
+    /**
+     * 有空闲的位置时，按相册轮流取出任务执行
+     *
+     * @return 通知被拒绝的任务，需要在锁外执行
+     */
+    private List<Runnable> dispatch() {
+        List<Runnable> rejected = new ArrayList<>(0);
+        while (running < maxRunning && !ring.isEmpty()) {
+            String key = ring.poll();
+            Deque<Task> queue = queues.get(key);
+            Task task = queue.poll();
+            if (queue.isEmpty()) {
+                queues.remove(key);
+            } else {
+                // 放到队尾，下一次轮到其他相册
+                ring.add(key);
+            }
+
+            running++;
+            try {
+                executor.execute(() -> {
+                    try {
+                        task.runnable.run();
+                    } finally {
+                        finish();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // 释放位置，继续取出下一个任务：线程池关闭时，所有等待的任务都会被通知拒绝
+                running--;
+                rejected.add(() -> task.onRejected.accept(e));
+            }
+        }
+        return rejected;
+    }
+
+    private void finish() {
+        List<Runnable> rejected;
+        synchronized (this) {
+            running--;
+            rejected = dispatch();
+        }
+        rejected.forEach(Runnable::run);
+    }
+
+    /**
+     * 等待执行的任务
+     */
+    private static final class Task {
+
+        final Runnable runnable;
+
+        final Consumer<RejectedExecutionException> onRejected;
+
+        Task(Runnable runnable, Consumer<RejectedExecutionException> onRejected) {
+            this.runnable = runnable;
+            this.onRejected = onRejected;
+        }
+    }
+}
@@ -1,4 +1,3 @@
-import org.jsoup.Connection;
 import org.jsoup.HttpStatusException;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
@@ -6,36 +5,47 @@ import org.jsoup.nodes.Element;
 import org.jsoup.select.Elements;
 
 import java.io.*;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.net.http.HttpResponse;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 public class FanfouAlbumDownloadTool {
 
-    private static final Map<String, String> HEADERS;
     private static final String ALBUM_URL_PREFIX = "https://fanfou.com/album";
     // 上下分隔符
     private static final String SEP = "=================================";
 
-    static {
-        // 初始化 header
-        HEADERS = new HashMap<>();
-        HEADERS.put("Accept", "text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,image/apng,*/*;q=0.8,application/signed-exchange;v=b3;q=0.9");
-        HEADERS.put("Accept-Encoding", "gzip, deflate, br");
-        HEADERS.put("Accept-Language", "ja-JP,ja;q=0.9,zh-CN;q=0.8,zh;q=0.7,en-US;q=0.6,en;q=0.5");
-        HEADERS.put("Cache-Control", "max-age=0");
-        HEADERS.put("User-Agent", "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_14_6) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/92.0.4515.131 Safari/537.36");
-    }
-
     public static void main(String[] args) {
-        runTool();
+        DownloadOptions options;
+        try {
+            options = DownloadOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        if (options.jobs != null) {
+            runBatch(options);
+        } else {
+            runTool(options);
+        }
     }
 
-    private static void runTool() {
+    private static void runTool(DownloadOptions options) {
 
-        try (Scanner sc = new Scanner(System.in)) {
-            downloadAlbums(sc);
+        try (Scanner sc = new Scanner(System.in);
+             DownloadEngine engine = new DownloadEngine(options)) {
+            downloadAlbums(sc, engine);
         } catch (HttpStatusException e) {
             System.err.println("Incorrect Album Url Or Cookie: Please check again");
         } catch (IOException | InterruptedException e) {
@@ -43,24 +53,153 @@ public class FanfouAlbumDownloadTool {
         }
     }
 
-    private static void downloadAlbums(Scanner sc) throws IOException, InterruptedException {
+    private static void downloadAlbums(Scanner sc,
+                                       DownloadEngine engine) throws IOException, InterruptedException {
         // 获取用户输入的 URL
         String typeInAlbumUrl = getTypeInAlbumUrl(sc);
         // 获取 cookie
         Map<String, String> cookies = getCookies(sc);
+        HttpTransport transport = engine.getTransport();
+        transport.setCookies(typeInAlbumUrl, cookies);
 
         // 获取网页中，含有 Album 信息的元素
-        Element albumInfo = getAlbumInfoElement(typeInAlbumUrl, cookies);
+        Element albumInfo = engine.fetchPage(typeInAlbumUrl,
+                () -> getAlbumInfoElement(transport, typeInAlbumUrl));
 
-        // 获取用户名称作为 Album 名称
-        String albumName = albumInfo.getElementsByTag("img").attr("alt");
-        // 获取当前 Album 的 URL：
-        String albumUrl = ALBUM_URL_PREFIX +
-                albumInfo.getElementsByTag("a").attr("href");
+        String albumName = getAlbumName(albumInfo);
+        String albumUrl = getAlbumUrl(albumInfo);
 
         System.out.println("About to download " + albumName + "'s album: " + albumUrl);
 
-        downloadStart(sc, cookies, albumName, albumUrl);
+        downloadStart(sc, engine, albumName, albumUrl);
+    }
+
+    /**
+     * 批量下载：从任务文件中读取所有相册，共用同一个下载引擎，
+     * 所有相册共享连接池、并发数和每个 host 的请求速率，照片按相册轮流下载
+     */
+    private static void runBatch(DownloadOptions options) {
+        List<DownloadJob> jobs;
+        Map<String, String> cookies;
+        try {
+            jobs = readJobs(new File(options.jobs));
+            cookies = options.cookieFile == null
+                    ? Collections.emptyMap()
+                    : getCookieMapFromCookie(Files.readString(new File(options.cookieFile).toPath()).trim());
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Fail to read jobs: " + e.getMessage());
+            return;
+        }
+        if (jobs.isEmpty()) {
+            System.err.println("No job in " + options.jobs);
+            return;
+        }
+
+        List<AlbumProgress> progresses = new ArrayList<>();
+        ExecutorService albums = Executors.newFixedThreadPool(Math.min(options.parallelAlbums, jobs.size()));
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+        try (DownloadEngine engine = new DownloadEngine(options)) {
+            if (!cookies.isEmpty()) {
+                engine.getTransport().setCookies(ALBUM_URL_PREFIX, cookies);
+            }
+
+            List<Future<?>> futures = new ArrayList<>();
+            for (DownloadJob job : jobs) {
+                AlbumProgress progress = new AlbumProgress(job.albumUrl);
+                progresses.add(progress);
+                futures.add(albums.submit(() -> {
+                    downloadJob(engine, job, progress);
+                    return null;
+                }));
+            }
+            reporter.scheduleAtFixedRate(() -> printProgress(engine, progresses),
+                    options.progressInterval, options.progressInterval, TimeUnit.SECONDS);
+
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                } catch (ExecutionException e) {
+                    progresses.get(i).finish(false);
+                    System.err.println("Fail to download album " + jobs.get(i).albumUrl + ": " + e.getCause());
+                }
+            }
+            printProgress(engine, progresses);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            reporter.shutdownNow();
+            albums.shutdownNow();
+        }
+    }
+
+    /**
+     * 读取任务文件，每行一个相册：{@code 相册的URL [起始页 [结束页]]}，空行和 # 开头的行会被忽略。
+     * 没有起始页时从第 1 页开始，没有结束页时下载到最后一页
+     */
+    private static List<DownloadJob> readJobs(File file) throws IOException {
+        List<DownloadJob> jobs = new ArrayList<>();
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+
+            String[] fields = line.split("\\s+");
+            try {
+                if (fields.length <= 3 && albumUrlCheck(fields[0])) {
+                    int from = fields.length > 1 ? Integer.parseInt(fields[1]) : 1;
+                    int to = fields.length > 2 ? Integer.parseInt(fields[2]) : DownloadJob.LAST_PAGE;
+                    if (to == DownloadJob.LAST_PAGE || from <= to) {
+                        jobs.add(new DownloadJob(fields[0], from, to));
+                        continue;
+                    }
+                }
+            } catch (NumberFormatException e) {
+                // 和其他格式错误一起处理
+            }
+            throw new IllegalArgumentException("Invalid job at line " + (i + 1) + ": " + line);
+        }
+        return jobs;
+    }
+
+    private static void downloadJob(DownloadEngine engine,
+                                    DownloadJob job,
+                                    AlbumProgress progress) throws IOException, InterruptedException {
+        HttpTransport transport = engine.getTransport();
+        Element albumInfo = engine.fetchPage(job.albumUrl,
+                () -> getAlbumInfoElement(transport, job.albumUrl));
+        downloadStart(engine, getAlbumName(albumInfo), getAlbumUrl(albumInfo), job.from, job.to, progress);
+    }
+
+    /**
+     * 输出所有相册的汇总进度
+     */
+    private static void printProgress(DownloadEngine engine, List<AlbumProgress> progresses) {
+        int finished = 0;
+        long downloaded = 0;
+        long skipped = 0;
+        long failed = 0;
+        long bytes = 0;
+        for (AlbumProgress progress : progresses) {
+            AlbumProgress.State state = progress.getState();
+            if (state == AlbumProgress.State.FINISHED || state == AlbumProgress.State.FAILED) {
+                finished++;
+            }
+            downloaded += progress.downloaded.sum();
+            skipped += progress.skipped.sum();
+            failed += progress.failed.sum();
+            bytes += progress.bytes.sum();
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Progress: %d/%d albums, %d downloaded, %d skipped, %d failed, %.1f MB %s%n",
+                finished, progresses.size(), downloaded, skipped, failed,
+                bytes / 1024.0 / 1024.0, formatRates(engine.getRates())));
+        progresses.forEach(progress -> sb.append("  ").append(progress).append(System.lineSeparator()));
+        System.out.print(sb);
     }
 
     private static String getTypeInAlbumUrl(Scanner sc) {
@@ -113,35 +252,46 @@ public class FanfouAlbumDownloadTool {
         return map;
     }
 
-    private static Element getAlbumInfoElement(String typeInAlbumUrl,
-                                               Map<String, String> cookies) throws IOException {
-        Connection.Response response = Jsoup.connect(typeInAlbumUrl)
-                .headers(HEADERS)
-                .cookies(cookies)
-                .timeout(10_000)
-                .ignoreContentType(true)
-                .execute();
+    private static String getAlbumName(Element albumInfo) {
+        // 获取用户名称作为 Album 名称
+        return albumInfo.getElementsByTag("img").attr("alt");
+    }
+
+    private static String getAlbumUrl(Element albumInfo) {
+        // 获取当前 Album 的 URL：
+        return ALBUM_URL_PREFIX + albumInfo.getElementsByTag("a").attr("href");
+    }
 
-        String body = response.body();
-        Document document = Jsoup.parse(body);
+    private static Element getAlbumInfoElement(HttpTransport transport,
+                                               String typeInAlbumUrl) throws IOException, InterruptedException {
+        String body = transport.getPage(typeInAlbumUrl);
+        Document document = Jsoup.parse(body, typeInAlbumUrl);
         Elements avatar = document.getElementsByClass("avatar");
         return avatar.get(0);
     }
 
     private static void downloadStart(Scanner sc,
-                                      Map<String, String> cookies,
+                                      DownloadEngine engine,
                                       String albumName,
-                                      String albumUrl) throws IOException {
-        // 获取需要下载的页数
+                                      String albumUrl) throws IOException, InterruptedException {
+        // 增量同步时不需要输入页数
+        if (engine.getOptions().sync) {
+            downloadStart(engine, albumName, albumUrl, 1, DownloadJob.LAST_PAGE, new AlbumProgress(albumName));
+            return;
+        }
+
+        // 获取需要下载的页数，不输入时下载整个相册
         int from;
         int to;
         while (true) {
             try {
-                System.out.println("Download from which page ?");
-                from = Integer.parseInt(sc.nextLine().trim());
-                System.out.println("Download to which page ?");
-                to = Integer.parseInt(sc.nextLine().trim());
-                if (from <= to) {
+                System.out.println("Download from which page ? (Press Enter to start from page 1)");
+                String line = sc.nextLine().trim();
+                from = line.isEmpty() ? 1 : Integer.parseInt(line);
+                System.out.println("Download to which page ? (Press Enter to download to the last page)");
+                line = sc.nextLine().trim();
+                to = line.isEmpty() ? DownloadJob.LAST_PAGE : Integer.parseInt(line);
+                if (to == DownloadJob.LAST_PAGE || from <= to) {
                     break;
                 }
                 System.out.println("You can't download from page " + from
@@ -151,47 +301,193 @@ public class FanfouAlbumDownloadTool {
             }
         }
 
-        downloadStart(cookies, albumName, albumUrl, from, to);
+        downloadStart(engine, albumName, albumUrl, from, to, new AlbumProgress(albumName));
     }
 
-    private static void downloadStart(Map<String, String> cookies,
+    private static void downloadStart(DownloadEngine engine,
                                       String albumName,
                                       String albumUrl,
                                       int from,
-                                      int to) throws IOException {
-        try (FileOutputStream fos = new FileOutputStream(getLogFile(albumName), true);
-             OutputStreamWriter osw = new OutputStreamWriter(fos);
-             PrintWriter logWriter = new PrintWriter(osw)) {
-
-            printSep(logWriter);
-
-            downloadStart(cookies, albumName, albumUrl, from, to, logWriter);
+                                      int to,
+                                      AlbumProgress progress) throws IOException, InterruptedException {
+        progress.start(albumName);
+        boolean success = false;
+        try (AsyncAppender log = AsyncAppender.open(getLogFile(albumName), true);
+             AsyncAppender events = AsyncAppender.open(getEventFile(albumName), false);
+             DownloadManifest manifest = DownloadManifest.open(getManifestFile(albumName));
+             FailedPhotoQueue failedQueue = FailedPhotoQueue.open(getFailedFile(albumName))) {
+
+            printSep(log);
+
+            Album album = new Album(albumName, albumUrl, manifest, failedQueue, log, events, progress);
+            if (engine.getOptions().sync) {
+                syncAlbum(engine, album);
+            } else {
+                downloadStart(engine, album, from, to);
+            }
+            if (engine.getOptions().retryFailed) {
+                retryFailed(engine, album);
+            }
+            success = true;
 
-            printSep(logWriter);
+            printToConsoleAndLog(progress.toString(), log);
+            printSep(log);
         } finally {
-            System.out.println("Finished.");
+            progress.finish(success);
+            System.out.println("Finished: " + albumName);
         }
     }
 
-    private static void downloadStart(Map<String, String> cookies,
-                                      String albumName,
-                                      String albumUrl,
+    private static void downloadStart(DownloadEngine engine,
+                                      Album album,
                                       int from,
-                                      int to,
-                                      PrintWriter logWriter) throws IOException {
+                                      int to) throws IOException, InterruptedException {
 
         // 如果 from 小于 1，就设定为 1，
-        for (int i = Math.max(from, 1); i <= to; i++) {
-            // 获取当前页数的 Album 的所有照片的 URL
-            List<String> photoUrls = getPhotoUrls(albumUrl + "/p." + i, cookies);
-            // 下载照片
-            downloadPhoto(photoUrls, albumName, logWriter);
-            // 输出
-            printToConsoleAndLog("Downloaded page " + i, logWriter);
-            slowDown(1000);
+        from = Math.max(from, 1);
+        // 探测最后一页时获取过的页面，下载时不需要再次请求
+        LastPageFinder finder = new LastPageFinder(i -> getPhotoUrls(engine, album.url, i));
+        if (to == DownloadJob.LAST_PAGE) {
+            to = findLastPage(engine, album, finder);
+            printToConsoleAndLog("Found " + to + " pages in " + album.name + "'s album", album.log);
+        }
+        album.progress.setTotalPages(Math.max(0, to - from + 1));
+
+        DownloadOptions options = engine.getOptions();
+        int depth = Math.max(1, options.prefetchPages);
+        // 正在下载照片的页面
+        Deque<CompletableFuture<Void>> inFlight = new ArrayDeque<>();
+
+        try (PagePipeline pipeline = new PagePipeline(depth, options.pageParallelism, from, to,
+                i -> getPhotoUrls(engine, album.url, finder, i))) {
+
+            for (PagePipeline.AlbumPage page = pipeline.take(); page != null; page = pipeline.take()) {
+                int number = page.number;
+                List<String> photoUrls = page.photoUrls;
+                photoUrls.forEach(album.manifest::pending);
+                // 下载照片，下载完毕后输出
+                CompletableFuture<Void> done = downloadPhoto(engine, photoUrls, album)
+                        .thenRun(() -> finishPage(engine, number, album));
+                inFlight.add(done);
+
+                // 正在下载的页面过多时，等待最早的页面下载完毕
+                if (inFlight.size() > depth) {
+                    inFlight.poll().join();
+                }
+            }
+        } finally {
+            inFlight.forEach(CompletableFuture::join);
         }
     }
 
+    /**
+     * 增量同步：从第一页开始下载新的照片，遇到上一次同步时最新的照片就停止
+     * <p>
+     * 新照片会让所有照片向后移动，页码和照片的对应关系会变化，
+     * 所以同步时不需要查找最后一页。
+     * <p>
+     * 大多数同步只有第一页有新照片，所以不使用 {@link PagePipeline} 提前获取页面：
+     * 上一页中没有遇到已经同步过的照片时，才获取下一页。获取下一页时，上一页的照片仍然在后台下载。
+     */
+    private static void syncAlbum(DownloadEngine engine, Album album) throws IOException, InterruptedException {
+        File syncFile = getSyncFile(album.name);
+        SyncState state = SyncState.load(syncFile);
+        // 这一次同步时最新的照片，也就是第一页的第一张照片
+        String newestUrl = null;
+        boolean reachedKnown = false;
+
+        DownloadOptions options = engine.getOptions();
+        int depth = Math.max(1, options.prefetchPages);
+        // 正在下载照片的页面
+        Deque<CompletableFuture<Void>> inFlight = new ArrayDeque<>();
+
+        try {
+            // 没有上限，遇到已经同步过的照片或者超过最后一页时停止
+            for (int number = 1; !reachedKnown; number++) {
+                List<String> pageUrls = getPhotoUrls(engine, album.url, number);
+                if (pageUrls.isEmpty()) {
+                    // 超过了最后一页
+                    break;
+                }
+                if (newestUrl == null) {
+                    newestUrl = pageUrls.get(0);
+                }
+
+                // 只下载上一次同步时最新的照片之前的照片
+                List<String> photoUrls = new ArrayList<>();
+                for (String url : pageUrls) {
+                    if (state.isKnown(url)) {
+                        reachedKnown = true;
+                        break;
+                    }
+                    photoUrls.add(url);
+                }
+
+                int page = number;
+                album.progress.setTotalPages(page);
+                photoUrls.forEach(album.manifest::pending);
+                inFlight.add(downloadPhoto(engine, photoUrls, album)
+                        .thenRun(() -> finishPage(engine, page, album)));
+
+                // 正在下载的页面过多时，等待最早的页面下载完毕
+                if (inFlight.size() > depth) {
+                    inFlight.poll().join();
+                }
+            }
+        } finally {
+            inFlight.forEach(CompletableFuture::join);
+        }
+
+        if (newestUrl == null) {
+            printToConsoleAndLog("No photo in " + album.name + "'s album", album.log);
+            return;
+        }
+        new SyncState(newestUrl).save(syncFile);
+        printToConsoleAndLog("Synced " + album.name + "'s album"
+                + (reachedKnown ? "" : " (no previously synced photo found, scanned all pages)"), album.log);
+    }
+
+    /**
+     * 重新下载之前失败的照片（包括以前运行时失败的照片）
+     */
+    private static void retryFailed(DownloadEngine engine, Album album) throws IOException {
+        List<FailedPhotoQueue.FailedPhoto> failedPhotos = album.failedQueue.drain();
+        if (!failedPhotos.isEmpty()) {
+            printToConsoleAndLog("Retrying " + failedPhotos.size() + " failed photos", album.log);
+            List<String> photoUrls = new ArrayList<>();
+            failedPhotos.forEach(photo -> photoUrls.add(photo.url));
+            downloadPhoto(engine, photoUrls, album).join();
+        }
+        // 重新下载中途退出时不会执行到这里，原来的记录仍然保留
+        album.failedQueue.finishDrain();
+    }
+
+    private static void finishPage(DownloadEngine engine, int page, Album album) {
+        album.progress.pages.incrementAndGet();
+        printToConsoleAndLog("Downloaded page " + page + " " + formatRates(engine.getRates()), album.log);
+    }
+
+    private static String formatRates(Map<String, Double> rates) {
+        StringJoiner joiner = new StringJoiner(", ", "(", ")");
+        rates.forEach((host, rate) -> joiner.add(String.format("%s: %.2f/s", host, rate)));
+        return joiner.toString();
+    }
+
+    private static File getManifestFile(String albumName) {
+        // 在当前目录保存相册的下载进度
+        return new File(albumName + ".manifest.jsonl");
+    }
+
+    private static File getSyncFile(String albumName) {
+        // 在当前目录保存增量同步的状态
+        return new File(albumName + ".sync.json");
+    }
+
+    private static File getFailedFile(String albumName) {
+        // 在当前目录保存下载失败的照片
+        return new File(albumName + ".failed.jsonl");
+    }
+
     private static File getLogFile(String filename) throws IOException {
         // 在当前目录创建相册的用户名称.log 的文件
         File file = new File(filename + ".log");
@@ -202,32 +498,114 @@ public class FanfouAlbumDownloadTool {
         throw new IOException("Can't create log file.");
     }
 
-    private static void printSep(PrintWriter logWriter) {
-        logWriter.print(SEP);
+    private static File getEventFile(String albumName) {
+        // 在当前目录保存 JSON Lines 格式的事件日志
+        return new File(albumName + ".events.jsonl");
+    }
+
+    private static void printSep(AsyncAppender log) {
         Calendar calendar = Calendar.getInstance();
         String time = calendar.getTime().toString();
-        logWriter.print(time);
-        logWriter.println(SEP);
+        log.append(SEP + time + SEP);
+    }
+
+    private static void printToConsoleAndLog(String line, AsyncAppender log) {
+        // 由后台线程批量写入日志文件和控制台，不阻塞下载线程
+        log.append(line);
+    }
+
+    /**
+     * 在事件日志中记录一次照片的下载
+     *
+     * @param event        done、error（之后可能会重试）、failed（重试之后仍然失败）或 skipped
+     * @param status       响应的状态码，没有收到响应时为 -1
+     * @param latencyNanos 下载花费的时间
+     * @param error        失败的原因，成功时为 null
+     */
+    private static void logPhotoEvent(Album album,
+                                      String event,
+                                      String photoUrl,
+                                      int attempt,
+                                      int status,
+                                      long bytes,
+                                      long latencyNanos,
+                                      String error) {
+        StringBuilder sb = new StringBuilder(256)
+                .append("{\"time\":").append(System.currentTimeMillis())
+                .append(",\"event\":\"").append(event).append('"')
+                .append(",\"url\":").append(JsonLines.quote(photoUrl))
+                .append(",\"attempt\":").append(attempt)
+                .append(",\"status\":").append(status)
+                .append(",\"bytes\":").append(bytes)
+                .append(",\"latencyMs\":").append(TimeUnit.NANOSECONDS.toMillis(latencyNanos));
+        if (error != null) {
+            sb.append(",\"error\":").append(JsonLines.quote(error));
+        }
+        album.events.append(sb.append('}').toString());
+    }
+
+    private static int getStatus(Throwable e) {
+        return e instanceof HttpStatusException ? ((HttpStatusException) e).getStatusCode() : -1;
+    }
+
+    /**
+     * 根据第一页的页码导航，查找相册的最后一页
+     */
+    private static int findLastPage(DownloadEngine engine,
+                                    Album album,
+                                    LastPageFinder finder) throws IOException, InterruptedException {
+        String firstPageUrl = album.url + "/p.1";
+        HttpTransport transport = engine.getTransport();
+        Document document = engine.fetchPage(firstPageUrl,
+                () -> Jsoup.parse(transport.getPage(firstPageUrl), firstPageUrl));
+        finder.addFetchedPage(1, getPhotoUrls(document));
+
+        // 页码导航中最大的页码
+        String pagePrefix = album.url + "/p.";
+        int hint = 1;
+        for (Element link : document.getElementsByTag("a")) {
+            String href = link.absUrl("href");
+            if (href.startsWith(pagePrefix)) {
+                try {
+                    hint = Math.max(hint, Integer.parseInt(href.substring(pagePrefix.length())));
+                } catch (NumberFormatException e) {
+                    // 不是页码的链接
+                }
+            }
+        }
+        return finder.find(hint);
     }
 
-    private static void printToConsoleAndLog(String line, PrintWriter logWriter) {
-        System.out.println(line);
-        logWriter.println(line);
-        logWriter.flush();
+    /**
+     * 页面中的照片会随着相册中新增照片而变化，所以总是重新获取页面，由照片的下载进度决定是否跳过
+     */
+    private static List<String> getPhotoUrls(DownloadEngine engine,
+                                             String albumUrl,
+                                             LastPageFinder finder,
+                                             int page) throws IOException, InterruptedException {
+        List<String> fetched = finder.takeFetchedPage(page);
+        return fetched != null ? fetched : getPhotoUrls(engine, albumUrl, page);
     }
 
-    private static List<String> getPhotoUrls(String currentAlbumUrl,
-                                             Map<String, String> cookies) throws IOException {
+    private static List<String> getPhotoUrls(DownloadEngine engine,
+                                             String albumUrl,
+                                             int page) throws IOException, InterruptedException {
+        // 获取当前页数的 Album 的所有照片的 URL
+        String currentAlbumUrl = albumUrl + "/p." + page;
+        HttpTransport transport = engine.getTransport();
+        return engine.fetchPage(currentAlbumUrl, () -> DownloadOptions.PARSER_DOM.equals(engine.getOptions().parser)
+                ? getPhotoUrls(transport, currentAlbumUrl)
+                : getPhotoUrlsStreaming(transport, currentAlbumUrl));
+    }
 
-        Connection.Response response = Jsoup.connect(currentAlbumUrl)
-                .headers(HEADERS)
-                .cookies(cookies)
-                .timeout(10_000)
-                .ignoreContentType(true)
-                .execute();
+    private static List<String> getPhotoUrls(HttpTransport transport,
+                                             String currentAlbumUrl) throws IOException, InterruptedException {
 
-        String body = response.body();
-        Document document = Jsoup.parse(body);
+        String body = transport.getPage(currentAlbumUrl);
+        return getPhotoUrls(Jsoup.parse(body, currentAlbumUrl));
+    }
+
+    static List<String> getPhotoUrls(Document document) {
         Elements photos = document.getElementsByClass("photo");
 
         List<String> list = new ArrayList<>();
@@ -235,66 +613,152 @@ public class FanfouAlbumDownloadTool {
         return list;
     }
 
+    /**
+     * 边读取页面边解析照片的 URL，不需要把整个页面读成字符串，也不需要构建 DOM
+     */
+    private static List<String> getPhotoUrlsStreaming(HttpTransport transport,
+                                                      String currentAlbumUrl) throws IOException, InterruptedException {
+
+        HttpResponse<InputStream> response = transport.openPage(currentAlbumUrl);
+        Charset charset = HttpTransport.getCharset(response.headers());
+        try (Reader reader = new InputStreamReader(HttpTransport.getBody(response), charset)) {
+            return getPhotoUrls(reader);
+        }
+    }
+
+    /**
+     * 使用 {@link PhotoUrlExtractor} 解析页面，结果和 {@link #getPhotoUrls(Document)} 相同
+     */
+    static List<String> getPhotoUrls(Reader reader) throws IOException {
+        List<String> list = new ArrayList<>();
+        PhotoUrlExtractor.extract(reader).forEach(src -> list.add(getOriginPhotoUrl(src)));
+        return list;
+    }
+
     private static String getOriginPhotoUrl(Element p) {
-        String url = p.getElementsByTag("img").attr("src");
+        return getOriginPhotoUrl(p.getElementsByTag("img").attr("src"));
+    }
 
+    private static String getOriginPhotoUrl(String url) {
         // 饭否的照片会在 URL 地址后面加上类似 @120w_120h_1l.jpg 的字符串来展示缩略图
         // 只要去除了 @ 及后面的字符串，就是原图的 URL
         String[] split = url.split("@");
         return split[0];
     }
 
-    private static void downloadPhoto(List<String> photoUrls,
-                                      String albumName,
-                                      PrintWriter logWriter) {
-        photoUrls.forEach(url -> downloadPhoto(url, albumName, logWriter));
+    private static CompletableFuture<Void> downloadPhoto(DownloadEngine engine,
+                                                         List<String> photoUrls,
+                                                         Album album) {
+        // 并发下载当前页的所有照片，全部完成（包括失败）时结束
+        CompletableFuture<?>[] futures = photoUrls.stream()
+                .map(url -> downloadPhoto(engine, url, album))
+                .toArray(CompletableFuture[]::new);
+        return CompletableFuture.allOf(futures);
     }
 
-    private static void downloadPhoto(String photoUrl,
-                                      String albumName,
-                                      PrintWriter logWriter) {
-
-        try (InputStream is = getUrl(photoUrl).openStream();
-             DataInputStream in = new DataInputStream(is);
-             FileOutputStream fos = new FileOutputStream(getPhotoFile(photoUrl, albumName));
-             DataOutputStream out = new DataOutputStream(fos)
-        ) {
-            byte[] buffer = new byte[1024];
-
-            for (int len = in.read(buffer); len > 0; len = in.read(buffer)) {
-                out.write(buffer, 0, len);
-            }
+    private static CompletableFuture<Void> downloadPhoto(DownloadEngine engine,
+                                                         String photoUrl,
+                                                         Album album) {
+
+        DownloadManifest manifest = album.manifest;
+        File photoFile = getPhotoFile(photoUrl, album.name);
+        // 已经完整下载的照片，直接跳过
+        if (manifest.isDone(photoUrl, photoFile)) {
+            printToConsoleAndLog("Skipped: " + photoUrl, album.log);
+            logPhotoEvent(album, "skipped", photoUrl, 0, -1, photoFile.length(), 0, null);
+            album.progress.skipped.increment();
+            return CompletableFuture.completedFuture(null);
+        }
 
-            printToConsoleAndLog("Downloaded: " + photoUrl, logWriter);
-        } catch (IOException | NullPointerException e) {
-            printToConsoleAndLog("Fail to download: " + photoUrl, logWriter);
-        } finally {
-            slowDown(3000);
+        // 曾经开始下载过的照片，会从 .part 文件继续下载；
+        // 没有下载记录的照片，不覆盖已经存在的文件
+        if (!manifest.isStarted(photoUrl) && photoFile.exists()) {
+            printToConsoleAndLog("Fail to download: " + photoUrl
+                    + " (Photo exists: " + photoFile.getName() + ")", album.log);
+            logPhotoEvent(album, "skipped", photoUrl, 0, -1, photoFile.length(), 0, "Photo exists");
+            album.progress.skipped.increment();
+            return CompletableFuture.completedFuture(null);
         }
-    }
 
-    private static void slowDown(int maxMilliSecPause) {
-        try {
-            // 防止被判定为机器人
-            Random random = new Random();
-            TimeUnit.MILLISECONDS.sleep(random.nextInt(maxMilliSecPause));
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+        // 去重时，已经保存过的照片直接链接到已有的文件，不再下载
+        PhotoStore store = engine.getPhotoStore();
+        if (store != null && linkKnownPhoto(store, photoUrl, photoFile, album)) {
+            return CompletableFuture.completedFuture(null);
         }
+
+        return engine.submitPhoto(album.name, photoUrl, attempt -> {
+            manifest.inFlight(photoUrl);
+            printToConsoleAndLog((attempt > 1 ? "Retrying (" + attempt + "): " : "Downloading: ")
+                    + photoFile.getName(), album.log);
+
+            DownloadMetrics metrics = engine.getMetrics();
+            long start = System.nanoTime();
+            PhotoFetcher.Result result;
+            try {
+                result = engine.getPhotoFetcher().fetch(photoUrl, photoFile.toPath());
+            } catch (IOException | RuntimeException e) {
+                long latency = System.nanoTime() - start;
+                metrics.recordError(latency);
+                logPhotoEvent(album, "error", photoUrl, attempt, getStatus(e), 0, latency, e.toString());
+                throw e;
+            }
+            long latency = System.nanoTime() - start;
+            metrics.recordSuccess(result.bytes, latency);
+            logPhotoEvent(album, "done", photoUrl, attempt, result.status, result.bytes, latency, null);
+
+            manifest.done(photoUrl, result.bytes, result.sha256);
+            album.progress.downloaded.increment();
+            album.progress.bytes.add(result.bytes);
+
+            // 相同内容的照片已经保存过时，改为硬链接
+            if (store != null && store.deduplicate(photoUrl, photoFile.toPath(), result.bytes, result.sha256)) {
+                printToConsoleAndLog("Downloaded: " + photoUrl + " (duplicate, linked)", album.log);
+                return;
+            }
+            printToConsoleAndLog("Downloaded: " + photoUrl, album.log);
+        }).handle((v, e) -> {
+            if (e != null) {
+                // 重试之后仍然失败，放入死信队列
+                DownloadEngine.PhotoFailure failure = DownloadEngine.PhotoFailure.of(e);
+                manifest.failed(photoUrl);
+                album.progress.failed.increment();
+                album.failedQueue.add(photoUrl, failure.attempts, failure.getMessage());
+                logPhotoEvent(album, "failed", photoUrl, failure.attempts, getStatus(failure.getCause()),
+                        0, 0, failure.getMessage());
+                printToConsoleAndLog("Fail to download: " + photoUrl
+                        + " (" + failure.getMessage() + ")", album.log);
+            }
+            return null;
+        });
     }
 
-    private static URL getUrl(String photoUrl) {
-        // 获取 URL 实体类
-        URL url = null;
+    /**
+     * @return 是否已经链接到了之前保存的照片
+     */
+    private static boolean linkKnownPhoto(PhotoStore store, String photoUrl, File photoFile, Album album) {
+        String sha256;
         try {
-            url = new URL(photoUrl);
-        } catch (MalformedURLException e) {
-            System.err.println("URL is not valid: " + photoUrl);
+            sha256 = store.linkKnown(photoUrl, photoFile.toPath());
+            if (sha256 == null) {
+                return false;
+            }
+            // 之前没有下载完成的部分已经不需要了
+            Path part = Paths.get(photoFile.getPath() + PhotoFetcher.PART_SUFFIX);
+            Files.deleteIfExists(part);
+            Files.deleteIfExists(Paths.get(part + PhotoFetcher.VALIDATOR_SUFFIX));
+        } catch (IOException e) {
+            // 无法链接时正常下载
+            return false;
         }
-        return url;
+
+        album.manifest.done(photoUrl, photoFile.length(), sha256);
+        printToConsoleAndLog("Linked: " + photoUrl + " (duplicate, not downloaded)", album.log);
+        logPhotoEvent(album, "linked", photoUrl, 0, -1, photoFile.length(), 0, null);
+        album.progress.skipped.increment();
+        return true;
     }
 
-    private static File getPhotoFile(String url, String parentPath) throws IOException {
+    private static File getPhotoFile(String url, String parentPath) {
         int index = url.lastIndexOf("/");
         String filename = url.substring(index + 1);
         File file = new File(parentPath, filename);
@@ -303,11 +767,6 @@ public class FanfouAlbumDownloadTool {
             System.out.println("Create Album Directory: " + parentPath);
         }
 
-        if (!file.createNewFile()) {
-            throw new IOException("Photo exists: " + filename);
-        }
-
-        System.out.println("Downloading: " + filename);
         return file;
     }
 }
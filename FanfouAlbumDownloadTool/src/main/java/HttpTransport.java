@@ -0,0 +1,285 @@
+import org.jsoup.HttpStatusException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * 共享的 HTTP 客户端
+ * <p>
+ * 相册页面和照片都通过同一个 {@link HttpClient} 请求，复用连接池（keep-alive），
+ * 服务器支持时使用 HTTP/2。请求头和 Cookie 都在这里统一设置。
+ * <p>
+ * {@link HttpClient} 不会自动解压响应体，所以页面请求只声明支持 gzip 和 deflate（JDK 没有 br 的解码器），
+ * 并在读取时根据 Content-Encoding 解压。照片本身已经是压缩过的格式，并且需要使用 Range 请求，所以不压缩。
+ */
+final class HttpTransport {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    private static final Map<String, String> HEADERS;
+
+    static {
+        // 初始化 header
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("Accept", "text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,image/apng,*/*;q=0.8,application/signed-exchange;v=b3;q=0.9");
+        headers.put("Accept-Language", "ja-JP,ja;q=0.9,zh-CN;q=0.8,zh;q=0.7,en-US;q=0.6,en;q=0.5");
+        headers.put("Cache-Control", "max-age=0");
+        headers.put("User-Agent", "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_14_6) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/92.0.4515.131 Safari/537.36");
+        HEADERS = Collections.unmodifiableMap(headers);
+    }
+
+    /**
+     * key 为域名，value 为发送到该域名（包括子域名）的 Cookie 请求头
+     */
+    private final Map<String, String> cookieHeaders = new ConcurrentHashMap<>();
+
+    private final HttpClient client;
+
+    private final ResponseListener listener;
+
+    HttpTransport() {
+        this((url, status, latencyNanos, retryAfterMillis) -> {
+        });
+    }
+
+    HttpTransport(ResponseListener listener) {
+        this.listener = listener;
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(TIMEOUT)
+                .build();
+    }
+
+    /**
+     * 设置 Cookie，之后发送到该 URL 所在域名（包括子域名）的请求都会带上这些 Cookie
+     *
+     * @param url     Cookie 所属的 URL
+     * @param cookies Cookie 的 Map 集合
+     */
+    void setCookies(String url, Map<String, String> cookies) {
+        String header = cookies.entrySet().stream()
+                .map(e -> e.getKey().trim() + "=" + e.getValue().trim())
+                .collect(Collectors.joining("; "));
+        cookieHeaders.put(getHost(url), header);
+    }
+
+    private String getCookieHeader(String host) {
+        for (Map.Entry<String, String> entry : cookieHeaders.entrySet()) {
+            String domain = entry.getKey();
+            if (host.equals(domain) || host.endsWith("." + domain)) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static String getHost(String url) {
+        String host = URI.create(url).getHost();
+        if (host == null) {
+            throw new IllegalArgumentException("URL is not valid: " + url);
+        }
+        host = host.toLowerCase(Locale.ROOT);
+        // 去掉 www，让照片所在的子域名也能使用
+        return host.startsWith("www.") ? host.substring(4) : host;
+    }
+
+    /**
+     * 获取页面的内容
+     *
+     * @param url 页面的 URL
+     * @return 解压后的页面内容
+     * @throws HttpStatusException 状态码不是 2xx
+     */
+    String getPage(String url) throws IOException, InterruptedException {
+        HttpResponse<InputStream> response = openPage(url);
+        Charset charset = getCharset(response.headers());
+        try (InputStream in = getBody(response)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            in.transferTo(out);
+            return new String(out.toByteArray(), charset);
+        }
+    }
+
+    /**
+     * 请求页面，返回未读取的响应，需要使用 {@link #getBody(HttpResponse)} 读取并关闭
+     *
+     * @throws HttpStatusException 状态码不是 2xx
+     */
+    HttpResponse<InputStream> openPage(String url) throws IOException, InterruptedException {
+        HttpRequest request = newRequest(url)
+                .header("Accept-Encoding", "gzip, deflate")
+                .build();
+        HttpResponse<InputStream> response = send(request, HttpResponse.BodyHandlers.ofInputStream());
+
+        int status = response.statusCode();
+        if (status < 200 || status >= 300) {
+            response.body().close();
+            throw new HttpStatusException("HTTP error fetching URL", status, url);
+        }
+        return response;
+    }
+
+    /**
+     * 请求照片
+     *
+     * @param url     照片的 URL
+     * @param range   Range 请求头，为 null 时请求完整的照片
+     * @param ifRange If-Range 请求头，照片和这个 ETag 或日期不一致时服务器返回完整的照片，为 null 时不发送
+     * @return 未读取的响应，调用者需要关闭响应体
+     */
+    HttpResponse<InputStream> getPhoto(String url,
+                                       String range,
+                                       String ifRange) throws IOException, InterruptedException {
+        HttpRequest.Builder builder = newRequest(url)
+                .header("Accept-Encoding", "identity");
+        if (range != null) {
+            builder.header("Range", range);
+            if (ifRange != null) {
+                builder.header("If-Range", ifRange);
+            }
+        }
+        return send(builder.build(), HttpResponse.BodyHandlers.ofInputStream());
+    }
+
+    /**
+     * 使用 HEAD 请求照片
+     *
+     * @return 只有响应头的响应
+     */
+    HttpResponse<Void> headPhoto(String url) throws IOException, InterruptedException {
+        HttpRequest request = newRequest(url)
+                .header("Accept-Encoding", "identity")
+                .method("HEAD", HttpRequest.BodyPublishers.noBody())
+                .build();
+        return send(request, HttpResponse.BodyHandlers.discarding());
+    }
+
+    /**
+     * 发送请求，并将状态码和响应时间通知给 {@link ResponseListener}
+     */
+    private <T> HttpResponse<T> send(HttpRequest request,
+                                     HttpResponse.BodyHandler<T> handler) throws IOException, InterruptedException {
+        String url = request.uri().toString();
+        long start = System.nanoTime();
+        HttpResponse<T> response;
+        try {
+            response = client.send(request, handler);
+        } catch (IOException e) {
+            listener.onResponse(url, -1, System.nanoTime() - start, -1);
+            throw e;
+        }
+        listener.onResponse(url, response.statusCode(), System.nanoTime() - start,
+                getRetryAfterMillis(response.headers()));
+        return response;
+    }
+
+    /**
+     * 读取 Retry-After 响应头，可以是秒数或者 HTTP 日期
+     *
+     * @return 需要等待的毫秒数，没有时返回 -1
+     */
+    static long getRetryAfterMillis(HttpHeaders headers) {
+        String value = headers.firstValue("Retry-After").orElse(null);
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            try {
+                ZonedDateTime date = ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                return Math.max(0, date.toInstant().toEpochMilli() - System.currentTimeMillis());
+            } catch (DateTimeParseException ignored) {
+                return -1;
+            }
+        }
+    }
+
+    private HttpRequest.Builder newRequest(String url) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(url))
+                .timeout(TIMEOUT)
+                .GET();
+        HEADERS.forEach(builder::header);
+
+        String cookie = getCookieHeader(getHost(url));
+        if (cookie != null && !cookie.isEmpty()) {
+            builder.header("Cookie", cookie);
+        }
+        return builder;
+    }
+
+    /**
+     * 每次收到响应或者请求失败时调用
+     */
+    @FunctionalInterface
+    interface ResponseListener {
+
+        /**
+         * @param url              请求的 URL
+         * @param status           HTTP 状态码，网络错误时为 -1
+         * @param latencyNanos     从发送请求到收到响应头的时间
+         * @param retryAfterMillis Retry-After 响应头的毫秒数，没有时为 -1
+         */
+        void onResponse(String url, int status, long latencyNanos, long retryAfterMillis);
+    }
+
+    /**
+     * 根据 Content-Encoding 解压响应体
+     */
+    static InputStream getBody(HttpResponse<InputStream> response) throws IOException {
+        String encoding = response.headers()
+                .firstValue("Content-Encoding")
+                .orElse("")
+                .trim()
+                .toLowerCase(Locale.ROOT);
+        InputStream body = response.body();
+        switch (encoding) {
+            case "gzip":
+            case "x-gzip":
+                return new GZIPInputStream(body);
+            case "deflate":
+                return new InflaterInputStream(body);
+            default:
+                return body;
+        }
+    }
+
+    static Charset getCharset(HttpHeaders headers) {
+        String contentType = headers.firstValue("Content-Type").orElse("");
+        for (String param : contentType.split(";")) {
+            String p = param.trim();
+            if (p.regionMatches(true, 0, "charset=", 0, 8)) {
+                try {
+                    return Charset.forName(p.substring(8).replace("\"", "").trim());
+                } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+                    break;
+                }
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+}
@@ -0,0 +1,131 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 读写 JSON Lines 文件时用到的工具方法
+ * <p>
+ * 只支持只有一层的 JSON 对象，值只能是字符串或数字，足够用于记录下载进度等信息
+ */
+final class JsonLines {
+
+    private JsonLines() {
+    }
+
+    static String quote(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * 解析只有一层的 JSON 对象，值只能是字符串或数字
+     *
+     * @param line 一行 JSON
+     * @return key 和 value 的 Map，无法解析时返回 null
+     */
+    static Map<String, String> parseLine(String line) {
+        Map<String, String> map = new HashMap<>();
+        int[] pos = {skipSpaces(line, 0)};
+        if (!expect(line, pos, '{')) {
+            return null;
+        }
+        if (expect(line, pos, '}')) {
+            return map;
+        }
+        while (true) {
+            String key = readString(line, pos);
+            if (key == null || !expect(line, pos, ':')) {
+                return null;
+            }
+            String value = pos[0] < line.length() && line.charAt(pos[0]) == '"'
+                    ? readString(line, pos)
+                    : readNumber(line, pos);
+            if (value == null) {
+                return null;
+            }
+            map.put(key, value);
+            if (expect(line, pos, '}')) {
+                return map;
+            }
+            if (!expect(line, pos, ',')) {
+                return null;
+            }
+        }
+    }
+
+    private static boolean expect(String line, int[] pos, char c) {
+        int i = skipSpaces(line, pos[0]);
+        if (i < line.length() && line.charAt(i) == c) {
+            pos[0] = skipSpaces(line, i + 1);
+            return true;
+        }
+        return false;
+    }
+
+    private static int skipSpaces(String line, int i) {
+        while (i < line.length() && Character.isWhitespace(line.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static String readString(String line, int[] pos) {
+        int i = pos[0];
+        if (i >= line.length() || line.charAt(i) != '"') {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (i++; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                pos[0] = skipSpaces(line, i + 1);
+                return sb.toString();
+            }
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            if (++i >= line.length()) {
+                return null;
+            }
+            char escaped = line.charAt(i);
+            if (escaped == 'u') {
+                if (i + 4 >= line.length()) {
+                    return null;
+                }
+                try {
+                    sb.append((char) Integer.parseInt(line.substring(i + 1, i + 5), 16));
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+                i += 4;
+            } else {
+                sb.append(escaped);
+            }
+        }
+        // 缺少结尾的引号
+        return null;
+    }
+
+    private static String readNumber(String line, int[] pos) {
+        int start = pos[0];
+        int i = start;
+        while (i < line.length() && (Character.isDigit(line.charAt(i)) || line.charAt(i) == '-')) {
+            i++;
+        }
+        if (i == start) {
+            return null;
+        }
+        pos[0] = skipSpaces(line, i);
+        return line.substring(start, i);
+    }
+}
@@ -0,0 +1,99 @@
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 查找相册的最后一页
+ * <p>
+ * 超过最后一页的页面中没有照片。先以页码导航中最大的页码作为起点，
+ * 如果下一页仍然有照片，就按 1、2、4、8…… 的步长向后探测，直到遇到空的页面，
+ * 再在最后一个有照片的页面和第一个空的页面之间二分查找。
+ * <p>
+ * 探测时获取的页面会被保存下来，下载时直接使用，不需要再次请求。
+ */
+final class LastPageFinder {
+
+    private final PagePipeline.PageFetcher fetcher;
+
+    /**
+     * 下载时会在多个线程中取出页面
+     */
+    private final Map<Integer, List<String>> fetchedPages = new ConcurrentHashMap<>();
+
+    /**
+     * @param fetcher 获取某一页的所有照片的 URL
+     */
+    LastPageFinder(PagePipeline.PageFetcher fetcher) {
+        this.fetcher = fetcher;
+    }
+
+    /**
+     * 保存已经获取过的页面
+     */
+    void addFetchedPage(int page, List<String> photoUrls) {
+        fetchedPages.put(page, photoUrls);
+    }
+
+    /**
+     * @param hint 页码导航中最大的页码，没有页码导航时为 1
+     * @return 最后一页的页码，相册中没有照片时为 0
+     */
+    int find(int hint) throws IOException, InterruptedException {
+        if (isEmpty(1)) {
+            return 0;
+        }
+
+        // low 一定有照片，high 一定没有照片，high 为 0 表示还没有找到空的页面
+        int low = 1;
+        int high = 0;
+        if (hint > 1) {
+            if (isEmpty(hint)) {
+                high = hint;
+            } else {
+                low = hint;
+            }
+        }
+
+        for (int step = 1; high == 0; step *= 2) {
+            int page = low + step;
+            if (page <= low) {
+                // 溢出
+                return low;
+            }
+            if (isEmpty(page)) {
+                high = page;
+            } else {
+                low = page;
+            }
+        }
+
+        while (high - low > 1) {
+            int mid = low + (high - low) / 2;
+            if (isEmpty(mid)) {
+                high = mid;
+            } else {
+                low = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * 取出探测时获取过的页面
+     *
+     * @return 页面中所有照片的 URL，没有获取过时为 null
+     */
+    List<String> takeFetchedPage(int page) {
+        return fetchedPages.remove(page);
+    }
+
+    private boolean isEmpty(int page) throws IOException, InterruptedException {
+        List<String> photoUrls = fetchedPages.get(page);
+        if (photoUrls == null) {
+            photoUrls = fetcher.fetch(page);
+            fetchedPages.put(page, photoUrls);
+        }
+        return photoUrls.isEmpty();
+    }
+}
@@ -0,0 +1,152 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 相册页面的生产者：在后台线程中按顺序获取并解析相册页面，
+ * 将解析出的照片 URL 放入有界队列中，供下载照片的消费者使用。
+ * <p>
+ * 这样在下载第 N 页的照片时，就可以同时获取第 N+1 页。
+ * 队列满了之后，生产者会等待，避免提前获取过多的页面。
+ * <p>
+ * 生产者最多同时获取 {@code parallelism} 个页面，但是放入队列的顺序和页码的顺序一致。
+ */
+final class PagePipeline implements AutoCloseable {
+
+    /**
+     * 队列结束的标记
+     */
+    private static final AlbumPage END = new AlbumPage(-1, Collections.emptyList());
+
+    private final BlockingQueue<AlbumPage> queue;
+
+    private final Thread producer;
+
+    /**
+     * 生产者获取页面时出现的异常
+     */
+    private volatile Exception failure;
+
+    PagePipeline(int capacity, int parallelism, int from, int to, PageFetcher fetcher) {
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        this.producer = new Thread(() -> produce(Math.max(1, parallelism), from, to, fetcher), "page-producer");
+        this.producer.setDaemon(true);
+        this.producer.start();
+    }
+
+    private void produce(int parallelism, int from, int to, PageFetcher fetcher) {
+        ExecutorService fetchers = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread thread = new Thread(r, "page-fetcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // 正在获取的页面，按页码的顺序排列
+        Deque<Future<AlbumPage>> fetching = new ArrayDeque<>();
+        try {
+            // 使用 long 计数，to 为 Integer.MAX_VALUE 时 i++ 也不会溢出
+            for (long i = from; i <= to; i++) {
+                int page = (int) i;
+                fetching.add(fetchers.submit(() -> new AlbumPage(page, fetcher.fetch(page))));
+                if (fetching.size() >= parallelism) {
+                    put(fetching.poll());
+                }
+            }
+            while (!fetching.isEmpty()) {
+                put(fetching.poll());
+            }
+        } catch (InterruptedException e) {
+            // 被消费者关闭
+            return;
+        } catch (IOException | RuntimeException e) {
+            failure = e;
+        } finally {
+            fetchers.shutdownNow();
+        }
+
+        try {
+            queue.put(END);
+        } catch (InterruptedException ignored) {
+            // 被消费者关闭，不需要再放入结束标记
+        }
+    }
+
+    private void put(Future<AlbumPage> future) throws IOException, InterruptedException {
+        AlbumPage page;
+        try {
+            page = future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+        queue.put(page);
+    }
+
+    /**
+     * 获取下一个页面
+     *
+     * @return 下一个页面，如果所有页面都已经获取完毕，就返回 null
+     * @throws IOException 生产者获取页面失败
+     */
+    AlbumPage take() throws IOException, InterruptedException {
+        AlbumPage page = queue.take();
+        if (page != END) {
+            return page;
+        }
+
+        // 保留结束标记，重复调用时也返回 null
+        queue.offer(END);
+        Exception e = failure;
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        }
+        if (e != null) {
+            throw (RuntimeException) e;
+        }
+        return null;
+    }
+
+    @Override
+    public void close() {
+        producer.interrupt();
+    }
+
+    /**
+     * 获取某一页的所有照片的 URL
+     */
+    @FunctionalInterface
+    interface PageFetcher {
+        List<String> fetch(int page) throws IOException, InterruptedException;
+    }
+
+    /**
+     * 某一页的所有照片的 URL
+     */
+    static final class AlbumPage {
+
+        final int number;
+
+        final List<String> photoUrls;
+
+        AlbumPage(int number, List<String> photoUrls) {
+            this.number = number;
+            this.photoUrls = photoUrls;
+        }
+    }
+}
@@ -0,0 +1,515 @@
+import org.jsoup.HttpStatusException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+
+/**
+ * 下载单张照片
+ * <p>
+ * 照片先写入同一目录下的 {@code .part} 文件，下载完成后再移动到目标文件，所以目标文件总是完整的。
+ * 中断后再次下载时，使用 HTTP Range 请求从 {@code .part} 文件的末尾继续下载。
+ * 开始写入 {@code .part} 文件时，会把响应的 ETag（或 Last-Modified）保存在 {@code .part.validator} 文件中，
+ * 续传时通过 If-Range 发送给服务器：照片已经改变时服务器会返回完整的照片，不会拼接到旧的 {@code .part} 文件上。
+ * <p>
+ * 开启分块下载后，较大的照片会被分为多个区间，并发下载并写入文件的相应位置。
+ * 每个区间的请求都受到照片所在 host 的并发数和请求速率的限制（见 {@link HostLimit}）。
+ * 分块下载的中间文件为 {@code .chunks}，因为无法判断哪些区间已经写完，所以中断后会重新下载。
+ * <p>
+ * 响应体通过 {@link ReadableByteChannel} 读入可以重复使用的 direct {@link ByteBuffer}，
+ * 再直接写入 {@link FileChannel}，不经过额外的字节数组和装饰流。
+ */
+final class PhotoFetcher implements AutoCloseable {
+
+    static final String PART_SUFFIX = ".part";
+
+    static final String CHUNKS_SUFFIX = ".chunks";
+
+    /**
+     * 保存 {@code .part} 文件开始下载时的验证器，文件名为 {@code .part} 文件的名称加上这个后缀
+     */
+    static final String VALIDATOR_SUFFIX = ".validator";
+
+    private static final int HTTP_OK = 200;
+
+    private static final int HTTP_PARTIAL = 206;
+
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    private final HttpTransport transport;
+
+    /**
+     * 空闲的缓冲区，下载时取出，下载完毕后放回
+     */
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+
+    private final int bufferSize;
+
+    /**
+     * 每张照片最多分为几块，小于 2 表示不分块
+     */
+    private final int chunks;
+
+    /**
+     * 大于等于这个大小（字节）的照片才分块下载
+     */
+    private final long chunkThreshold;
+
+    private final ExecutorService chunkExecutor;
+
+    /**
+     * 照片所在 host 的并发数和请求速率的限制，参数为照片的 URL
+     */
+    private final Function<String, HostLimit> hostLimits;
+
+    PhotoFetcher(HttpTransport transport,
+                 int bufferSize,
+                 int chunks,
+                 long chunkThreshold,
+                 Function<String, HostLimit> hostLimits) {
+        this.transport = transport;
+        this.bufferSize = Math.max(1024, bufferSize);
+        this.chunks = chunks;
+        this.chunkThreshold = chunkThreshold;
+        this.hostLimits = hostLimits;
+        this.chunkExecutor = chunks > 1 ? Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "photo-chunk");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+    }
+
+    /**
+     * 照片所在 host 的并发数和请求速率的限制
+     * <p>
+     * 调用 {@link #fetch} 时，调用者已经持有这个 host 的一个并发数。分块下载时，当前线程使用这个并发数，
+     * 其他线程只使用空闲的并发数，不会等待，所以不会和其他正在下载的照片互相等待；
+     * 每个区间的请求都要先等待请求速率的限制。
+     */
+    interface HostLimit {
+
+        /**
+         * 不限制并发数和请求速率
+         */
+        HostLimit UNLIMITED = new HostLimit() {
+            @Override
+            public boolean tryAcquire() {
+                return true;
+            }
+
+            @Override
+            public void release() {
+            }
+
+            @Override
+            public void pace() {
+            }
+        };
+
+        /**
+         * 不等待地获取一个空闲的并发数
+         *
+         * @return 是否获取成功
+         */
+        boolean tryAcquire();
+
+        void release();
+
+        /**
+         * 等待到请求速率允许发送下一个请求
+         */
+        void pace() throws InterruptedException;
+    }
+
+    /**
+     * 下载结果
+     */
+    static final class Result {
+
+        final long bytes;
+
+        final String sha256;
+
+        /**
+         * 响应的状态码，续传和分块下载时为 206
+         */
+        final int status;
+
+        Result(long bytes, String sha256, int status) {
+            this.bytes = bytes;
+            this.sha256 = sha256;
+            this.status = status;
+        }
+    }
+
+    /**
+     * 下载照片到目标文件
+     *
+     * @param url    照片的 URL
+     * @param target 目标文件
+     * @return 照片的大小、SHA-256 和响应的状态码
+     */
+    Result fetch(String url, Path target) throws IOException {
+        try {
+            Path part = target.resolveSibling(target.getFileName() + PART_SUFFIX);
+            Path validator = part.resolveSibling(part.getFileName() + VALIDATOR_SUFFIX);
+
+            if (chunks > 1 && !Files.exists(part)) {
+                HttpHeaders headers = probeRanges(url);
+                long length = headers == null ? -1 : headers.firstValueAsLong("Content-Length").orElse(-1);
+                if (length >= chunkThreshold && length > 0) {
+                    Path chunked = target.resolveSibling(target.getFileName() + CHUNKS_SUFFIX);
+                    fetchChunked(url, chunked, length, getValidator(headers));
+                    Result result = digest(chunked, HTTP_PARTIAL);
+                    moveIntoPlace(chunked, target);
+                    return result;
+                }
+            }
+
+            Result result = fetchSequential(url, part, validator);
+            moveIntoPlace(part, target);
+            Files.deleteIfExists(validator);
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted: " + url);
+        }
+    }
+
+    /**
+     * 从 {@code part} 文件的末尾继续下载，服务器不支持 Range 或者照片已经改变时从头下载
+     *
+     * @param validatorFile 保存 {@code part} 文件开始下载时的验证器的文件
+     */
+    private Result fetchSequential(String url,
+                                   Path part,
+                                   Path validatorFile) throws IOException, InterruptedException {
+        long offset = Files.exists(part) ? Files.size(part) : 0;
+        String validator = offset > 0 && Files.exists(validatorFile)
+                ? Files.readString(validatorFile, StandardCharsets.UTF_8)
+                : null;
+        if (validator == null || validator.isEmpty()) {
+            // 无法确认 .part 文件和服务器上的照片是同一个版本，从头下载
+            offset = 0;
+        }
+
+        HttpResponse<InputStream> response = getPhotoFrom(url, offset, validator);
+        if (response.statusCode() == HTTP_RANGE_NOT_SATISFIABLE) {
+            // .part 文件和服务器上的照片不一致，删除后从头下载，只重试一次
+            response.body().close();
+            Files.deleteIfExists(part);
+            offset = 0;
+            response = getPhotoFrom(url, offset, null);
+        }
+
+        try (ReadableByteChannel in = Channels.newChannel(response.body())) {
+            int status = response.statusCode();
+            if (status == HTTP_PARTIAL) {
+                String range = response.headers().firstValue("Content-Range").orElse("");
+                if (!range.startsWith("bytes " + offset + "-")) {
+                    throw new IOException("Unexpected Content-Range: " + range);
+                }
+            } else if (status == HTTP_OK) {
+                // 服务器返回了完整的照片：没有续传、服务器不支持 Range，或者 If-Range 不匹配
+                offset = 0;
+                saveValidator(validatorFile, getValidator(response.headers()));
+            } else {
+                throw new HttpStatusException("HTTP error fetching photo", status, url);
+            }
+
+            // 续传时，先计算已经下载的部分的 SHA-256，剩下的部分边下载边计算
+            MessageDigest digest = newSha256();
+            if (offset > 0) {
+                digest(part, offset, digest);
+            }
+
+            long bytes = offset;
+            ByteBuffer buffer = acquireBuffer();
+            try (FileChannel out = FileChannel.open(part,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                out.truncate(offset);
+                out.position(offset);
+                while (in.read(buffer) >= 0) {
+                    buffer.flip();
+                    bytes += buffer.remaining();
+                    // update 会移动 position，所以先记录再恢复
+                    buffer.mark();
+                    digest.update(buffer);
+                    buffer.reset();
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                    buffer.clear();
+                }
+            } finally {
+                releaseBuffer(buffer);
+            }
+            return new Result(bytes, toHex(digest.digest()), status);
+        }
+    }
+
+    /**
+     * @param offset    从第几个字节开始下载，0 表示下载完整的照片
+     * @param validator 续传时发送的 If-Range
+     */
+    private HttpResponse<InputStream> getPhotoFrom(String url,
+                                                   long offset,
+                                                   String validator) throws IOException, InterruptedException {
+        return offset > 0
+                ? transport.getPhoto(url, "bytes=" + offset + "-", validator)
+                : transport.getPhoto(url, null, null);
+    }
+
+    /**
+     * 将照片分为多个区间并发下载，每个区间写入文件的相应位置
+     *
+     * @param validator 探测时得到的验证器，每个区间都通过 If-Range 发送，照片在下载过程中改变时下载失败
+     */
+    private void fetchChunked(String url,
+                              Path file,
+                              long length,
+                              String validator) throws IOException, InterruptedException {
+        Files.deleteIfExists(file);
+        long chunkSize = (length + chunks - 1) / chunks;
+        Queue<long[]> ranges = new ConcurrentLinkedQueue<>();
+        for (long start = 0; start < length; start += chunkSize) {
+            ranges.add(new long[]{start, Math.min(start + chunkSize, length) - 1});
+        }
+        HostLimit limit = hostLimits.apply(url);
+
+        try (FileChannel out = FileChannel.open(file,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+
+            // 当前线程使用调用者持有的并发数，其他线程各自使用一个空闲的并发数，结束时释放
+            List<Future<Void>> futures = new ArrayList<>();
+            try {
+                int count = ranges.size();
+                for (int i = 1; i < count && limit.tryAcquire(); i++) {
+                    FutureTask<Void> future = new FutureTask<>(() -> {
+                        fetchRanges(url, out, ranges, validator, limit);
+                        return null;
+                    }) {
+                        @Override
+                        protected void done() {
+                            limit.release();
+                        }
+                    };
+                    try {
+                        chunkExecutor.execute(future);
+                    } catch (RejectedExecutionException e) {
+                        limit.release();
+                        throw e;
+                    }
+                    futures.add(future);
+                }
+
+                fetchRanges(url, out, ranges, validator, limit);
+                for (Future<Void> future : futures) {
+                    await(future);
+                }
+            } catch (IOException | InterruptedException | RuntimeException e) {
+                futures.forEach(f -> f.cancel(true));
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * 依次取出并下载区间，直到所有的区间都已经被取出
+     */
+    private void fetchRanges(String url,
+                             FileChannel out,
+                             Queue<long[]> ranges,
+                             String validator,
+                             HostLimit limit) throws IOException, InterruptedException {
+        for (long[] range = ranges.poll(); range != null; range = ranges.poll()) {
+            limit.pace();
+            fetchRange(url, out, range[0], range[1], validator);
+        }
+    }
+
+    private static void await(Future<Void> future) throws IOException, InterruptedException {
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private void fetchRange(String url,
+                            FileChannel out,
+                            long from,
+                            long to,
+                            String validator) throws IOException, InterruptedException {
+        HttpResponse<InputStream> response = transport.getPhoto(url, "bytes=" + from + "-" + to, validator);
+        try (ReadableByteChannel in = Channels.newChannel(response.body())) {
+            if (response.statusCode() != HTTP_PARTIAL) {
+                throw new IOException("Range not supported: " + url);
+            }
+
+            long position = from;
+            ByteBuffer buffer = acquireBuffer();
+            try {
+                while (in.read(buffer) >= 0) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        // 按位置写入，多个区间可以同时写入同一个 FileChannel
+                        position += out.write(buffer, position);
+                    }
+                    buffer.clear();
+                }
+            } finally {
+                releaseBuffer(buffer);
+            }
+            if (position != to + 1) {
+                throw new IOException("Incomplete range " + from + "-" + to + ": " + url);
+            }
+        }
+    }
+
+    /**
+     * 使用 HEAD 请求检查服务器是否支持 Range 请求
+     *
+     * @return 响应头，服务器不支持 Range 请求时返回 null
+     */
+    private HttpHeaders probeRanges(String url) throws IOException, InterruptedException {
+        HttpResponse<Void> response = transport.headPhoto(url);
+        HttpHeaders headers = response.headers();
+        if (response.statusCode() != HTTP_OK
+                || !"bytes".equalsIgnoreCase(headers.firstValue("Accept-Ranges").orElse(""))) {
+            return null;
+        }
+        return headers;
+    }
+
+    /**
+     * 可以在 If-Range 中使用的验证器：强 ETag，没有时使用 Last-Modified
+     *
+     * @return 没有可以使用的验证器时返回 null
+     */
+    static String getValidator(HttpHeaders headers) {
+        String etag = headers.firstValue("ETag").orElse(null);
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return headers.firstValue("Last-Modified").orElse(null);
+    }
+
+    private static void saveValidator(Path file, String validator) throws IOException {
+        if (validator == null) {
+            Files.deleteIfExists(file);
+        } else {
+            Files.writeString(file, validator, StandardCharsets.UTF_8);
+        }
+    }
+
+    private ByteBuffer acquireBuffer() {
+        ByteBuffer buffer = buffers.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    private void releaseBuffer(ByteBuffer buffer) {
+        buffer.clear();
+        buffers.offer(buffer);
+    }
+
+    /**
+     * 将下载完成的文件移动到目标文件
+     */
+    private static void moveIntoPlace(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target,
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private Result digest(Path file, int status) throws IOException {
+        MessageDigest digest = newSha256();
+        long bytes = digest(file, Long.MAX_VALUE, digest);
+        return new Result(bytes, toHex(digest.digest()), status);
+    }
+
+    /**
+     * 计算文件前 {@code limit} 个字节的 SHA-256
+     *
+     * @return 实际读取的字节数
+     */
+    private long digest(Path file, long limit, MessageDigest digest) throws IOException {
+        long bytes = 0;
+        ByteBuffer buffer = acquireBuffer();
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (bytes < limit) {
+                buffer.limit((int) Math.min(buffer.capacity(), limit - bytes));
+                if (in.read(buffer) < 0) {
+                    break;
+                }
+                buffer.flip();
+                bytes += buffer.remaining();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        } finally {
+            releaseBuffer(buffer);
+        }
+        return bytes;
+    }
+
+    static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // 所有 JDK 都支持 SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16))
+                    .append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void close() {
+        if (chunkExecutor != null) {
+            chunkExecutor.shutdownNow();
+        }
+    }
+}
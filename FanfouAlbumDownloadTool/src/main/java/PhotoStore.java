@@ -0,0 +1,207 @@
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 按照内容去重的照片库
+ * <p>
+ * 以下载时计算出的 SHA-256 作为照片的标识，在索引文件中记录每个 SHA-256 第一次保存的位置，
+ * 以及每个 URL 对应的 SHA-256。
+ * <ul>
+ *     <li>下载之前：URL 已经下载过时，直接用硬链接指向已经保存的文件，不再下载</li>
+ *     <li>下载之后：同一张照片在其他 URL 中再次出现时，删除刚下载的文件，改为硬链接</li>
+ * </ul>
+ * 创建硬链接之前都会重新计算已有文件的 SHA-256，已有的文件被修改过时不会链接到它。
+ * <p>
+ * 索引文件为 JSON Lines 格式，启动时顺序读取一次，之后只追加写入。
+ */
+final class PhotoStore implements Closeable {
+
+    private static final int HASH_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * key 为 SHA-256，value 为第一次保存的位置
+     */
+    private final Map<String, Path> index;
+
+    /**
+     * key 为照片的 URL，value 为照片的 SHA-256
+     */
+    private final Map<String, String> urls;
+
+    private final Writer writer;
+
+    private PhotoStore(Map<String, Path> index, Map<String, String> urls, Writer writer) {
+        this.index = index;
+        this.urls = urls;
+        this.writer = writer;
+    }
+
+    /**
+     * 读取索引文件，文件不存在时创建新的文件
+     *
+     * @param file 索引文件
+     * @return 照片库
+     */
+    static PhotoStore open(File file) throws IOException {
+        Map<String, Path> index = new ConcurrentHashMap<>();
+        Map<String, String> urls = new ConcurrentHashMap<>();
+        Path path = file.toPath();
+        if (Files.exists(path)) {
+            try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    Map<String, String> fields = JsonLines.parseLine(line);
+                    // 忽略不完整的行
+                    if (fields == null || fields.get("sha256") == null) {
+                        continue;
+                    }
+                    if (fields.get("path") != null) {
+                        index.put(fields.get("sha256"), Paths.get(fields.get("path")));
+                    }
+                    if (fields.get("url") != null) {
+                        urls.put(fields.get("url"), fields.get("sha256"));
+                    }
+                }
+            }
+        }
+
+        return new PhotoStore(index, urls, Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+    }
+
+    /**
+     * 下载之前调用：这个 URL 的照片已经保存过，并且保存的文件没有被修改时，用硬链接代替下载
+     *
+     * @param url   照片的 URL
+     * @param photo 照片要保存的位置
+     * @return 链接的照片的 SHA-256，没有保存过或者无法链接时返回 null，这时需要下载
+     */
+    String linkKnown(String url, Path photo) throws IOException {
+        String sha256 = urls.get(url);
+        if (sha256 == null) {
+            return null;
+        }
+        Path existing = index.get(sha256);
+        Path target = photo.toAbsolutePath().normalize();
+        if (existing == null || existing.equals(target) || !isSamePhoto(existing, sha256)) {
+            return null;
+        }
+        if (Files.exists(target) && Files.isSameFile(existing, target)) {
+            return sha256;
+        }
+        return link(existing, target) ? sha256 : null;
+    }
+
+    /**
+     * 将刚下载完成的照片加入照片库：
+     * 如果相同内容的照片已经保存过，就删除刚下载的文件，改为指向已有文件的硬链接
+     *
+     * @param url    照片的 URL
+     * @param photo  刚下载完成的照片
+     * @param bytes  照片的大小
+     * @param sha256 照片的 SHA-256
+     * @return 是否替换为了硬链接
+     */
+    boolean deduplicate(String url, Path photo, long bytes, String sha256) throws IOException {
+        if (!sha256.equals(urls.put(url, sha256))) {
+            append("{\"url\":" + JsonLines.quote(url) + ",\"sha256\":\"" + sha256 + "\"}");
+        }
+
+        Path target = photo.toAbsolutePath().normalize();
+        while (true) {
+            Path existing = index.putIfAbsent(sha256, target);
+            if (existing == null) {
+                appendPath(sha256, target);
+                return false;
+            }
+            if (existing.equals(target)) {
+                return false;
+            }
+            // 大小不同时不需要计算 SHA-256
+            if (Files.isRegularFile(existing) && Files.size(existing) == bytes && isSamePhoto(existing, sha256)) {
+                if (Files.isSameFile(existing, target)) {
+                    return false;
+                }
+                return link(existing, target);
+            }
+            // 已有的文件被删除或修改了，改为记录刚下载的文件
+            if (index.replace(sha256, existing, target)) {
+                appendPath(sha256, target);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * @return 已有的文件是否存在，并且 SHA-256 仍然是 {@code sha256}
+     */
+    private static boolean isSamePhoto(Path existing, String sha256) throws IOException {
+        if (!Files.isRegularFile(existing)) {
+            return false;
+        }
+        MessageDigest digest = PhotoFetcher.newSha256();
+        ByteBuffer buffer = ByteBuffer.allocate(HASH_BUFFER_SIZE);
+        try (FileChannel in = FileChannel.open(existing, StandardOpenOption.READ)) {
+            while (in.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return sha256.equals(PhotoFetcher.toHex(digest.digest()));
+    }
+
+    /**
+     * 先在同一目录下创建硬链接，再替换目标文件，所以目标文件总是完整的
+     */
+    private static boolean link(Path existing, Path target) throws IOException {
+        Path temp = target.resolveSibling(target.getFileName() + ".link");
+        try {
+            Files.deleteIfExists(temp);
+            Files.createLink(temp, existing);
+        } catch (UnsupportedOperationException | IOException e) {
+            // 不支持硬链接，或者不在同一个文件系统中，保留刚下载的文件
+            Files.deleteIfExists(temp);
+            return false;
+        }
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return true;
+    }
+
+    private void appendPath(String sha256, Path path) {
+        append("{\"sha256\":\"" + sha256 + "\",\"path\":" + JsonLines.quote(path.toString()) + "}");
+    }
+
+    private synchronized void append(String line) {
+        try {
+            writer.write(line);
+            writer.write(System.lineSeparator());
+            writer.flush();
+        } catch (IOException e) {
+            System.err.println("Fail to write photo index: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+}
@@ -0,0 +1,328 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 从相册页面的 HTML 流中，直接读取照片的 {@code src}
+ * <p>
+ * 和 {@code Jsoup.parse(body).getElementsByClass("photo")} 的结果相同：
+ * 对每个 class 含有 {@code photo} 的元素，取其中第一个 {@code <img>} 的 {@code src}。
+ * 但是不需要先把整个页面读成字符串，也不需要构建 DOM，边读边解析，读到的字符只保存在一个小缓冲区中。
+ * <p>
+ * 这是一个只针对这个场景的简化的 HTML 分词器：会跳过注释、{@code <script>} 和 {@code <style>} 的内容，
+ * 只解析开始标签、结束标签和属性，并解码属性值中常见的字符实体。
+ */
+final class PhotoUrlExtractor {
+
+    private static final String PHOTO_CLASS = "photo";
+
+    private static final int EOF = -1;
+
+    private final Reader reader;
+
+    private final char[] buffer = new char[8192];
+
+    private int pos;
+
+    private int limit;
+
+    private final List<String> urls = new ArrayList<>();
+
+    /**
+     * 当前所在的 class 含有 photo 的元素的标签名，不在这样的元素中时为 null
+     */
+    private String photoTag;
+
+    /**
+     * 同名标签的嵌套深度，回到 0 时表示离开了这个元素
+     */
+    private int photoDepth;
+
+    /**
+     * 当前的元素中是否已经找到了 img
+     */
+    private boolean found;
+
+    private PhotoUrlExtractor(Reader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * 读取页面中所有照片的 {@code src}
+     *
+     * @param reader 页面的内容，读取完毕后不会关闭
+     * @return 照片的 {@code src}，顺序和页面中的一致
+     */
+    static List<String> extract(Reader reader) throws IOException {
+        PhotoUrlExtractor extractor = new PhotoUrlExtractor(reader);
+        extractor.run();
+        return extractor.urls;
+    }
+
+    private void run() throws IOException {
+        for (int c = read(); c != EOF; c = read()) {
+            if (c == '<') {
+                readMarkup();
+            }
+        }
+    }
+
+    private void readMarkup() throws IOException {
+        int c = read();
+        if (c == '!') {
+            if (read() == '-' && read() == '-') {
+                skipUntil("-->");
+            } else {
+                skipUntil(">");
+            }
+        } else if (c == '?') {
+            skipUntil(">");
+        } else if (c == '/') {
+            String name = readName(read());
+            skipUntil(">");
+            onEndTag(name);
+        } else if (isNameStart(c)) {
+            readStartTag(c);
+        }
+    }
+
+    private void readStartTag(int first) throws IOException {
+        String name = readName(first);
+        Map<String, String> attributes = new HashMap<>();
+        boolean selfClosing = false;
+
+        int c = read();
+        while (c != EOF && c != '>') {
+            if (c == '/') {
+                selfClosing = true;
+                c = read();
+            } else if (Character.isWhitespace(c)) {
+                c = read();
+            } else {
+                selfClosing = false;
+                c = readAttribute(c, attributes);
+            }
+        }
+
+        onStartTag(name, attributes, selfClosing);
+
+        // script 和 style 中的内容不是 HTML，直接跳过
+        if ("script".equals(name) || "style".equals(name)) {
+            skipUntilIgnoreCase("</" + name);
+            skipUntil(">");
+        }
+    }
+
+    /**
+     * 读取一个属性
+     *
+     * @return 属性之后的第一个字符
+     */
+    private int readAttribute(int first, Map<String, String> attributes) throws IOException {
+        StringBuilder name = new StringBuilder();
+        int c = first;
+        while (c != EOF && c != '=' && c != '>' && c != '/' && !Character.isWhitespace(c)) {
+            name.append((char) Character.toLowerCase(c));
+            c = read();
+        }
+        while (c != EOF && Character.isWhitespace(c)) {
+            c = read();
+        }
+        if (c != '=') {
+            attributes.putIfAbsent(name.toString(), "");
+            return c;
+        }
+
+        c = read();
+        while (c != EOF && Character.isWhitespace(c)) {
+            c = read();
+        }
+        StringBuilder value = new StringBuilder();
+        if (c == '"' || c == '\'') {
+            int quote = c;
+            for (c = read(); c != EOF && c != quote; c = read()) {
+                value.append((char) c);
+            }
+            c = read();
+        } else {
+            while (c != EOF && c != '>' && !Character.isWhitespace(c)) {
+                value.append((char) c);
+                c = read();
+            }
+        }
+        attributes.putIfAbsent(name.toString(), decodeEntities(value));
+        return c;
+    }
+
+    private void onStartTag(String name, Map<String, String> attributes, boolean selfClosing) {
+        if (photoTag != null) {
+            if (!found && "img".equals(name) && attributes.containsKey("src")) {
+                urls.add(attributes.get("src"));
+                found = true;
+            }
+            if (name.equals(photoTag) && !selfClosing) {
+                photoDepth++;
+            }
+            return;
+        }
+
+        if (!hasPhotoClass(attributes.get("class"))) {
+            return;
+        }
+        if ("img".equals(name)) {
+            // img 本身的 class 含有 photo
+            if (attributes.containsKey("src")) {
+                urls.add(attributes.get("src"));
+            }
+        } else if (!selfClosing) {
+            photoTag = name;
+            photoDepth = 1;
+            found = false;
+        }
+    }
+
+    private void onEndTag(String name) {
+        if (photoTag != null && name.equals(photoTag) && --photoDepth == 0) {
+            photoTag = null;
+        }
+    }
+
+    private static boolean hasPhotoClass(String classes) {
+        if (classes == null) {
+            return false;
+        }
+        for (String c : classes.trim().split("\\s+")) {
+            if (PHOTO_CLASS.equalsIgnoreCase(c)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String readName(int first) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c = first;
+        while (c != EOF && c != '>' && c != '/' && !Character.isWhitespace(c)) {
+            sb.append((char) Character.toLowerCase(c));
+            c = read();
+        }
+        // 标签名后面的字符还需要继续解析
+        unread(c);
+        return sb.toString();
+    }
+
+    private static boolean isNameStart(int c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private void skipUntil(String end) throws IOException {
+        int matched = 0;
+        for (int c = read(); c != EOF; c = read()) {
+            if (c == end.charAt(matched)) {
+                if (++matched == end.length()) {
+                    return;
+                }
+            } else {
+                matched = c == end.charAt(0) ? 1 : 0;
+            }
+        }
+    }
+
+    private void skipUntilIgnoreCase(String end) throws IOException {
+        int matched = 0;
+        for (int c = read(); c != EOF; c = read()) {
+            if (Character.toLowerCase(c) == end.charAt(matched)) {
+                if (++matched == end.length()) {
+                    return;
+                }
+            } else {
+                matched = c == end.charAt(0) ? 1 : 0;
+            }
+        }
+    }
+
+    private int read() throws IOException {
+        if (pos == limit) {
+            limit = reader.read(buffer, 0, buffer.length);
+            pos = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return EOF;
+            }
+        }
+        return buffer[pos++];
+    }
+
+    private void unread(int c) {
+        // 只会在 read 之后调用，所以上一个字符一定还在缓冲区中
+        if (c != EOF) {
+            pos--;
+        }
+    }
+
+    /**
+     * 解码属性值中的 &amp;amp; &amp;lt; &amp;gt; &amp;quot; &amp;apos; 和数字字符实体
+     */
+    static String decodeEntities(CharSequence value) {
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            int semicolon;
+            if (c != '&' || (semicolon = indexOf(value, ';', i + 1)) < 0 || semicolon - i > 10) {
+                sb.append(c);
+                continue;
+            }
+
+            String entity = value.subSequence(i + 1, semicolon).toString().toLowerCase(Locale.ROOT);
+            String decoded = decodeEntity(entity);
+            if (decoded == null) {
+                sb.append(c);
+                continue;
+            }
+            sb.append(decoded);
+            i = semicolon;
+        }
+        return sb.toString();
+    }
+
+    private static String decodeEntity(String entity) {
+        switch (entity) {
+            case "amp":
+                return "&";
+            case "lt":
+                return "<";
+            case "gt":
+                return ">";
+            case "quot":
+                return "\"";
+            case "apos":
+                return "'";
+            default:
+                break;
+        }
+        if (!entity.startsWith("#") || entity.length() < 2) {
+            return null;
+        }
+        try {
+            int codePoint = entity.charAt(1) == 'x'
+                    ? Integer.parseInt(entity.substring(2), 16)
+                    : Integer.parseInt(entity.substring(1));
+            return new String(Character.toChars(codePoint));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static int indexOf(CharSequence s, char c, int from) {
+        for (int i = from; i < s.length(); i++) {
+            if (s.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
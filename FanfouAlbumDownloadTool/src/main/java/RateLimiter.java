@@ -0,0 +1,112 @@
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 单个 host 的自适应限速器（AIMD）
+ * <p>
+ * 请求之间的间隔为 {@code 1 / rate}，并加上随机抖动，防止被判定为机器人。
+ * 响应快且成功时，每次将 rate 增加一个固定值；遇到 429、5xx 或网络错误时，将 rate 减半，
+ * 并暂停一段时间：优先使用服务器返回的 Retry-After，否则按连续失败次数指数退避，再加上随机抖动。
+ */
+final class RateLimiter {
+
+    /**
+     * 每次成功后增加的速率（次/秒）
+     */
+    private static final double INCREASE_STEP = 0.1;
+
+    /**
+     * 失败后速率乘以的系数
+     */
+    private static final double DECREASE_FACTOR = 0.5;
+
+    /**
+     * 超过这个时间才返回响应头，就认为服务器变慢了，不再提速
+     */
+    private static final long SLOW_RESPONSE_NANOS = TimeUnit.SECONDS.toNanos(3);
+
+    private static final long BASE_BACKOFF_MILLIS = 1000;
+
+    private static final long MAX_BACKOFF_MILLIS = 60_000;
+
+    private final double minRate;
+
+    private final double maxRate;
+
+    private double rate;
+
+    /**
+     * 下一个请求最早可以开始的时间
+     */
+    private long nextStartNanos = System.nanoTime();
+
+    /**
+     * 连续失败的次数
+     */
+    private int failures;
+
+    RateLimiter(double initialRate, double minRate, double maxRate) {
+        this.minRate = Math.max(0.01, minRate);
+        this.maxRate = Math.max(this.minRate, maxRate);
+        this.rate = clamp(initialRate);
+    }
+
+    /**
+     * 预约下一个请求的开始时间
+     *
+     * @return 需要等待的时间（纳秒）
+     */
+    synchronized long reserve() {
+        long now = System.nanoTime();
+        long start = Math.max(now, nextStartNanos);
+        // 间隔在 0.5 到 1.5 倍之间随机，平均值为 1 / rate
+        double jitter = 0.5 + ThreadLocalRandom.current().nextDouble();
+        nextStartNanos = start + (long) (TimeUnit.SECONDS.toNanos(1) / rate * jitter);
+        return start - now;
+    }
+
+    /**
+     * 根据响应调整速率
+     *
+     * @param status           HTTP 状态码，网络错误时为 -1
+     * @param latencyNanos     从发送请求到收到响应头的时间
+     * @param retryAfterMillis 服务器要求等待的时间，没有时为 -1
+     * @return 是否因为失败而降速
+     */
+    synchronized boolean onResponse(int status, long latencyNanos, long retryAfterMillis) {
+        if (status == 429 || status >= 500 || status < 0) {
+            failures++;
+            rate = clamp(rate * DECREASE_FACTOR);
+            long backoff = retryAfterMillis >= 0 ? retryAfterMillis : getBackoffMillis();
+            nextStartNanos = Math.max(nextStartNanos,
+                    System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff));
+            return true;
+        }
+
+        failures = 0;
+        if (status < 400 && latencyNanos < SLOW_RESPONSE_NANOS) {
+            rate = clamp(rate + INCREASE_STEP);
+        }
+        return false;
+    }
+
+    /**
+     * 指数退避：1 秒、2 秒、4 秒……最多 60 秒，实际时间在一半到全部之间随机
+     */
+    private long getBackoffMillis() {
+        long backoff = BASE_BACKOFF_MILLIS << Math.min(failures - 1, 16);
+        backoff = Math.min(backoff, MAX_BACKOFF_MILLIS);
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+
+    /**
+     * @return 当前的速率（次/秒）
+     */
+    synchronized double getRate() {
+        return rate;
+    }
+
+    private double clamp(double value) {
+        return Math.min(maxRate, Math.max(minRate, value));
+    }
+}
@@ -0,0 +1,57 @@
+import org.jsoup.HttpStatusException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.file.FileSystemException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 照片下载失败时的重试策略
+ * <p>
+ * 网络错误、超时、408、429 和 5xx 可以重试，每次重试前等待的时间按指数增长，并加上随机抖动；
+ * 其他 4xx（例如 404）和本地文件的错误重试也不会成功，直接放弃。
+ */
+final class RetryPolicy {
+
+    private static final long MAX_BACKOFF_MILLIS = 60_000;
+
+    private final int maxAttempts;
+
+    private final long baseBackoffMillis;
+
+    RetryPolicy(int maxAttempts, long baseBackoffMillis) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseBackoffMillis = Math.max(0, baseBackoffMillis);
+    }
+
+    /**
+     * 第 {@code attempt} 次下载失败后，是否还需要重试
+     */
+    boolean shouldRetry(Throwable e, int attempt) {
+        return attempt < maxAttempts && isRetryable(e);
+    }
+
+    static boolean isRetryable(Throwable e) {
+        if (e instanceof HttpStatusException) {
+            int status = ((HttpStatusException) e).getStatusCode();
+            return status == 408 || status == 429 || status >= 500;
+        }
+        if (e instanceof SocketTimeoutException) {
+            return true;
+        }
+        if (e instanceof InterruptedIOException || e instanceof FileSystemException) {
+            // 被中断，或者是本地文件的错误
+            return false;
+        }
+        return e instanceof IOException;
+    }
+
+    /**
+     * 第 {@code attempt} 次失败后，下一次重试前需要等待的时间，在一半到全部之间随机
+     */
+    long getBackoffMillis(int attempt) {
+        long backoff = Math.min(baseBackoffMillis << Math.min(attempt - 1, 16), MAX_BACKOFF_MILLIS);
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+}
@@ -0,0 +1,71 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+
+/**
+ * 增量同步的状态：上一次同步完成时，相册中最新的一张照片
+ * <p>
+ * 相册的第一页是最新的照片，同步时从第一页开始向后扫描，遇到这张照片就说明之后的照片都已经下载过了。
+ * 只有同步完整结束后才会更新，中途退出时下次会从头扫描到上一次记录的照片。
+ */
+final class SyncState {
+
+    /**
+     * 最新的照片的 URL，还没有同步过时为 null
+     */
+    final String newestUrl;
+
+    /**
+     * 最新的照片的 ID（URL 中的文件名，不包括扩展名），比较时使用 ID，不受照片所在 host 的影响
+     */
+    final String newestId;
+
+    SyncState(String newestUrl) {
+        this.newestUrl = newestUrl;
+        this.newestId = newestUrl == null ? null : getPhotoId(newestUrl);
+    }
+
+    static SyncState load(File file) throws IOException {
+        if (!file.exists()) {
+            return new SyncState(null);
+        }
+        String line = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+        Map<String, String> fields = JsonLines.parseLine(line);
+        return new SyncState(fields == null ? null : fields.get("url"));
+    }
+
+    /**
+     * 先写入临时文件再替换，中途退出时不会留下不完整的文件
+     */
+    void save(File file) throws IOException {
+        Path path = file.toPath();
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        String line = "{\"url\":" + JsonLines.quote(newestUrl)
+                + ",\"id\":" + JsonLines.quote(newestId)
+                + ",\"time\":" + System.currentTimeMillis() + "}";
+        Files.write(temp, (line + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+        try {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * @return 照片是否已经在上一次同步时下载过
+     */
+    boolean isKnown(String photoUrl) {
+        return newestId != null && newestId.equals(getPhotoId(photoUrl));
+    }
+
+    static String getPhotoId(String photoUrl) {
+        String filename = photoUrl.substring(photoUrl.lastIndexOf('/') + 1);
+        int dot = filename.lastIndexOf('.');
+        return dot > 0 ? filename.substring(0, dot) : filename;
+    }
+}
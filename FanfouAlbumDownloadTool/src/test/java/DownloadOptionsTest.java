@@ -0,0 +1,72 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * 测试 {@link DownloadOptions#parse} 对请求速率的检查：只检查命令行中指定的速率，默认值会被调整到范围内
+ */
+class DownloadOptionsTest {
+
+    @Test
+    void usesDefaultRatesWithoutOptions() {
+        DownloadOptions options = DownloadOptions.parse(new String[0]);
+        assertEquals(2, options.pageRate);
+        assertEquals(1, options.photoRate);
+    }
+
+    @Test
+    void clampsDefaultRatesBelowMaxRate() {
+        DownloadOptions options = DownloadOptions.parse(new String[]{"--max-rate=1"});
+        assertEquals(1, options.pageRate);
+        assertEquals(1, options.photoRate);
+        assertEquals(1, options.maxRate);
+    }
+
+    @Test
+    void clampsDefaultRatesAboveMinRate() {
+        DownloadOptions options = DownloadOptions.parse(new String[]{"--min-rate=3"});
+        assertEquals(3, options.pageRate);
+        assertEquals(3, options.photoRate);
+        assertEquals(3, options.minRate);
+    }
+
+    @Test
+    void raisesDefaultMaxRateToExplicitMinRate() {
+        DownloadOptions options = DownloadOptions.parse(new String[]{"--min-rate=20"});
+        assertEquals(20, options.maxRate);
+        assertEquals(20, options.pageRate);
+    }
+
+    @Test
+    void keepsExplicitRatesInRange() {
+        DownloadOptions options = DownloadOptions.parse(
+                new String[]{"--max-rate=1", "--page-rate=0.5", "--photo-rate=1"});
+        assertEquals(0.5, options.pageRate);
+        assertEquals(1, options.photoRate);
+    }
+
+    @Test
+    void rejectsExplicitRateAboveMaxRate() {
+        assertThrows(IllegalArgumentException.class,
+                () -> DownloadOptions.parse(new String[]{"--max-rate=1", "--page-rate=2"}));
+    }
+
+    @Test
+    void rejectsExplicitRateBelowMinRate() {
+        assertThrows(IllegalArgumentException.class,
+                () -> DownloadOptions.parse(new String[]{"--min-rate=3", "--photo-rate=1"}));
+    }
+
+    @Test
+    void rejectsMinRateGreaterThanMaxRate() {
+        assertThrows(IllegalArgumentException.class,
+                () -> DownloadOptions.parse(new String[]{"--min-rate=3", "--max-rate=2"}));
+    }
+
+    @Test
+    void rejectsUnknownOption() {
+        assertThrows(IllegalArgumentException.class,
+                () -> DownloadOptions.parse(new String[]{"--max-rte=1"}));
+    }
+}
@@ -0,0 +1,42 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * 测试 {@link FailedPhotoQueue#drain()} 读取以前的记录
+ */
+class FailedPhotoQueueTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void drainsPhotosWithInvalidAttempts() throws IOException {
+        Path file = dir.resolve("album.failed.jsonl");
+        Files.write(file, List.of(
+                "{\"url\":\"http://a/1.jpg\",\"attempts\":3,\"reason\":\"timeout\"}",
+                "{\"url\":\"http://a/2.jpg\",\"attempts\":\"x\",\"reason\":\"timeout\"}",
+                "not json",
+                "{\"url\":\"http://a/3.jpg\",\"attempts\":99999999999,\"reason\":\"timeout\"}"),
+                StandardCharsets.UTF_8);
+
+        try (FailedPhotoQueue queue = FailedPhotoQueue.open(file.toFile())) {
+            List<FailedPhotoQueue.FailedPhoto> photos = queue.drain();
+            assertEquals(3, photos.size());
+            assertEquals("http://a/1.jpg", photos.get(0).url);
+            assertEquals(3, photos.get(0).attempts);
+            assertEquals("http://a/2.jpg", photos.get(1).url);
+            assertEquals(0, photos.get(1).attempts);
+            assertEquals("http://a/3.jpg", photos.get(2).url);
+            assertEquals(0, photos.get(2).attempts);
+            queue.finishDrain();
+        }
+    }
+}
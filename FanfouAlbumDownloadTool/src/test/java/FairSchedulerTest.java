@@ -0,0 +1,73 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 测试 {@link FairScheduler} 在线程池拒绝任务时，等待的任务不会丢失
+ */
+class FairSchedulerTest {
+
+    @Test
+    void notifiesQueuedTasksRejectedAfterShutdown() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        FairScheduler scheduler = new FairScheduler(executor, 1);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        CompletableFuture<Void> running = submit(scheduler, "a", () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        // 正在执行的任务占用了唯一的位置，下面的任务在调度器中等待
+        List<CompletableFuture<Void>> queued = List.of(
+                submit(scheduler, "a", () -> { }),
+                submit(scheduler, "b", () -> { }));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // 正在执行的任务结束时，调度器取出的任务会被已经关闭的线程池拒绝
+        executor.shutdown();
+        release.countDown();
+
+        running.get(5, TimeUnit.SECONDS);
+        for (CompletableFuture<Void> future : queued) {
+            Throwable error = future.handle((v, e) -> e).get(5, TimeUnit.SECONDS);
+            assertInstanceOf(RejectedExecutionException.class, error);
+        }
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void notifiesTaskRejectedOnSubmit() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+        FairScheduler scheduler = new FairScheduler(executor, 1);
+
+        Throwable error = submit(scheduler, "a", () -> { }).handle((v, e) -> e).get(5, TimeUnit.SECONDS);
+        assertInstanceOf(RejectedExecutionException.class, error);
+    }
+
+    /**
+     * @return 任务执行完毕时正常结束，被拒绝时以 {@link RejectedExecutionException} 结束
+     */
+    private static CompletableFuture<Void> submit(FairScheduler scheduler, String key, Runnable task) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        scheduler.submit(key, () -> {
+            task.run();
+            future.complete(null);
+        }, future::completeExceptionally);
+        return future;
+    }
+}
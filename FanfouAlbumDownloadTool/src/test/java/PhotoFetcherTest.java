@@ -0,0 +1,295 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 使用本机的 {@link HttpServer} 测试 {@link PhotoFetcher} 的续传、Range 和分块下载
+ */
+class PhotoFetcherTest {
+
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+    private static final String ETAG = "\"v1\"";
+
+    private final byte[] photo = new byte[100_000];
+
+    /**
+     * 服务器收到的每个请求：方法、Range 和 If-Range
+     */
+    private final List<String> requests = new CopyOnWriteArrayList<>();
+
+    private final AtomicInteger concurrent = new AtomicInteger();
+
+    private final AtomicInteger maxConcurrent = new AtomicInteger();
+
+    /**
+     * 是否支持 Range 请求，不支持时总是返回完整的照片
+     */
+    private volatile boolean supportsRange = true;
+
+    /**
+     * 每个 GET 响应在发送之前等待的时间
+     */
+    private volatile long delayMillis;
+
+    private HttpServer server;
+
+    private ExecutorService executor;
+
+    @TempDir
+    Path dir;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        new Random(42).nextBytes(photo);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/photo.jpg", this::handle);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private String url() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/photo.jpg";
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+            requests.add(exchange.getRequestMethod() + " " + range + " " + ifRange);
+            exchange.getResponseHeaders().add("ETag", ETAG);
+
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                if (supportsRange) {
+                    exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+                }
+                exchange.getResponseHeaders().add("Content-Length", String.valueOf(photo.length));
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+
+            int active = concurrent.incrementAndGet();
+            maxConcurrent.accumulateAndGet(active, Math::max);
+            try {
+                Thread.sleep(delayMillis);
+                Matcher matcher = range == null ? null : RANGE.matcher(range);
+                boolean partial = supportsRange && matcher != null && matcher.matches()
+                        && (ifRange == null || ETAG.equals(ifRange));
+                if (!partial) {
+                    send(exchange, 200, 0, photo.length);
+                    return;
+                }
+
+                int from = Integer.parseInt(matcher.group(1));
+                int to = matcher.group(2).isEmpty() ? photo.length - 1 : Integer.parseInt(matcher.group(2));
+                if (from >= photo.length) {
+                    exchange.getResponseHeaders().add("Content-Range", "bytes */" + photo.length);
+                    exchange.sendResponseHeaders(416, -1);
+                    return;
+                }
+                to = Math.min(to, photo.length - 1);
+                exchange.getResponseHeaders().add("Content-Range",
+                        "bytes " + from + "-" + to + "/" + photo.length);
+                send(exchange, 206, from, to + 1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                concurrent.decrementAndGet();
+            }
+        }
+    }
+
+    private void send(HttpExchange exchange, int status, int from, int to) throws IOException {
+        exchange.sendResponseHeaders(status, to - from);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(photo, from, to - from);
+        }
+    }
+
+    private PhotoFetcher newFetcher(int chunks, PhotoFetcher.HostLimit limit) {
+        return new PhotoFetcher(new HttpTransport(), 4096, chunks, 1024, url -> limit);
+    }
+
+    private Path writePart(Path target, byte[] content, String validator) throws IOException {
+        Path part = target.resolveSibling(target.getFileName() + PhotoFetcher.PART_SUFFIX);
+        Files.write(part, content);
+        if (validator != null) {
+            Files.writeString(part.resolveSibling(part.getFileName() + PhotoFetcher.VALIDATOR_SUFFIX),
+                    validator, StandardCharsets.UTF_8);
+        }
+        return part;
+    }
+
+    private void assertPhoto(Path target, PhotoFetcher.Result result) throws IOException {
+        assertArrayEquals(photo, Files.readAllBytes(target));
+        assertEquals(photo.length, result.bytes);
+        assertEquals(PhotoFetcher.toHex(PhotoFetcher.newSha256().digest(photo)), result.sha256);
+        try (var files = Files.list(dir)) {
+            // 下载完成后只剩下目标文件
+            assertEquals(List.of(target), Arrays.asList(files.toArray(Path[]::new)));
+        }
+    }
+
+    @Test
+    void resumesFromPartialFile() throws IOException {
+        Path target = dir.resolve("photo.jpg");
+        writePart(target, Arrays.copyOf(photo, 30_000), ETAG);
+
+        try (PhotoFetcher fetcher = newFetcher(1, PhotoFetcher.HostLimit.UNLIMITED)) {
+            PhotoFetcher.Result result = fetcher.fetch(url(), target);
+
+            assertEquals(206, result.status);
+            assertPhoto(target, result);
+            assertEquals(List.of("GET bytes=30000- " + ETAG), requests);
+        }
+    }
+
+    @Test
+    void restartsWhenPhotoChangedSincePartWasStarted() throws IOException {
+        Path target = dir.resolve("photo.jpg");
+        writePart(target, new byte[30_000], "\"v0\"");
+
+        try (PhotoFetcher fetcher = newFetcher(1, PhotoFetcher.HostLimit.UNLIMITED)) {
+            PhotoFetcher.Result result = fetcher.fetch(url(), target);
+
+            assertEquals(200, result.status);
+            assertPhoto(target, result);
+            assertEquals(List.of("GET bytes=30000- \"v0\""), requests);
+        }
+    }
+
+    @Test
+    void restartsWithoutRangeWhenNoValidatorWasSaved() throws IOException {
+        Path target = dir.resolve("photo.jpg");
+        writePart(target, new byte[30_000], null);
+
+        try (PhotoFetcher fetcher = newFetcher(1, PhotoFetcher.HostLimit.UNLIMITED)) {
+            PhotoFetcher.Result result = fetcher.fetch(url(), target);
+
+            assertEquals(200, result.status);
+            assertPhoto(target, result);
+            assertEquals(List.of("GET null null"), requests);
+        }
+    }
+
+    @Test
+    void fallsBackToFullPhotoWhenRangeIsIgnored() throws IOException {
+        supportsRange = false;
+        Path target = dir.resolve("photo.jpg");
+        writePart(target, new byte[30_000], ETAG);
+
+        try (PhotoFetcher fetcher = newFetcher(1, PhotoFetcher.HostLimit.UNLIMITED)) {
+            PhotoFetcher.Result result = fetcher.fetch(url(), target);
+
+            assertEquals(200, result.status);
+            assertPhoto(target, result);
+        }
+    }
+
+    @Test
+    void restartsOnceWhenRangeIsNotSatisfiable() throws IOException {
+        Path target = dir.resolve("photo.jpg");
+        writePart(target, new byte[photo.length + 10], ETAG);
+
+        try (PhotoFetcher fetcher = newFetcher(1, PhotoFetcher.HostLimit.UNLIMITED)) {
+            PhotoFetcher.Result result = fetcher.fetch(url(), target);
+
+            assertEquals(200, result.status);
+            assertPhoto(target, result);
+            assertEquals(List.of("GET bytes=" + (photo.length + 10) + "- " + ETAG, "GET null null"), requests);
+        }
+    }
+
+    @Test
+    void reassemblesChunks() throws IOException {
+        Path target = dir.resolve("photo.jpg");
+
+        try (PhotoFetcher fetcher = newFetcher(4, PhotoFetcher.HostLimit.UNLIMITED)) {
+            PhotoFetcher.Result result = fetcher.fetch(url(), target);
+
+            assertEquals(206, result.status);
+            assertPhoto(target, result);
+            assertEquals(5, requests.size());
+            assertTrue(requests.contains("GET bytes=0-24999 " + ETAG));
+            assertTrue(requests.contains("GET bytes=75000-99999 " + ETAG));
+        }
+    }
+
+    @Test
+    void chunksUseOnlyFreeHostPermits() throws IOException {
+        delayMillis = 50;
+        AtomicInteger paced = new AtomicInteger();
+        PhotoFetcher.HostLimit noFreePermits = new PhotoFetcher.HostLimit() {
+            @Override
+            public boolean tryAcquire() {
+                return false;
+            }
+
+            @Override
+            public void release() {
+            }
+
+            @Override
+            public void pace() {
+                paced.incrementAndGet();
+            }
+        };
+        Path target = dir.resolve("photo.jpg");
+
+        try (PhotoFetcher fetcher = newFetcher(4, noFreePermits)) {
+            PhotoFetcher.Result result = fetcher.fetch(url(), target);
+
+            assertPhoto(target, result);
+            // 没有空闲的并发数时，所有区间都在调用者的线程中依次下载
+            assertEquals(1, maxConcurrent.get());
+            assertEquals(4, paced.get());
+        }
+    }
+
+    @Test
+    void doesNotChunkWhenRangeIsNotSupported() throws IOException {
+        supportsRange = false;
+        Path target = dir.resolve("photo.jpg");
+
+        try (PhotoFetcher fetcher = newFetcher(4, PhotoFetcher.HostLimit.UNLIMITED)) {
+            PhotoFetcher.Result result = fetcher.fetch(url(), target);
+
+            // 不支持 Range 时不分块
+            assertEquals(200, result.status);
+            assertPhoto(target, result);
+            assertFalse(requests.stream().anyMatch(request -> request.startsWith("GET bytes=")));
+        }
+    }
+}
@@ -0,0 +1,86 @@
+import org.jsoup.Jsoup;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+/**
+ * 检查 {@link PhotoUrlExtractor}（{@code --parser=stream}）和 jsoup 的 DOM（{@code --parser=dom}）
+ * 从同一个相册页面中解析出的照片 URL 相同
+ * <p>
+ * 页面使用 benchmark 中的 {@code album-page.html} 模板生成
+ */
+class PhotoUrlExtractorTest {
+
+    private static final String BASE = "http://photo.example.com";
+
+    @Test
+    void parsesFixturePageLikeDom() throws IOException {
+        StringBuilder photos = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            photos.append("<li><a href=\"/photo/p").append(i).append("\" class=\"photo\" title=\"p").append(i)
+                    .append("\"><img src=\"").append(BASE).append("/photo/p").append(i)
+                    .append(".jpg@200w_200h_1l.jpg\" alt=\"p").append(i).append("\" /></a></li>\n");
+        }
+        List<String> urls = assertSameUrls(render(photos.toString()));
+        assertEquals(20, urls.size());
+        assertEquals(BASE + "/photo/p0.jpg", urls.get(0));
+    }
+
+    @Test
+    void decodesEntitiesLikeDom() throws IOException {
+        List<String> urls = assertSameUrls(render(
+                "<li><a class=\"photo\"><img src=\"" + BASE + "/a.jpg?x=1&amp;y=2\" /></a></li>\n"
+                        + "<li><a class=\"photo\"><img src=\"" + BASE + "/b.jpg?x=1&#38;y=2&#x26;z=3\" /></a></li>\n"
+                        + "<li><a class=\"photo\"><img src=\"" + BASE + "/&quot;c&quot;.jpg\" /></a></li>\n"));
+        assertEquals(List.of(BASE + "/a.jpg?x=1&y=2", BASE + "/b.jpg?x=1&y=2&z=3", BASE + "/\"c\".jpg"), urls);
+    }
+
+    @Test
+    void parsesAttributeQuotingLikeDom() throws IOException {
+        List<String> urls = assertSameUrls(render(
+                "<li><a class=\"photo\"><img src=\"" + BASE + "/double.jpg\"></a></li>\n"
+                        + "<li><a class='photo'><img src='" + BASE + "/single.jpg@100w.jpg'></a></li>\n"
+                        + "<li><a class=photo><img src=" + BASE + "/unquoted.jpg></a></li>\n"
+                        + "<li><a CLASS = \"photo\" ><IMG SRC = \"" + BASE + "/spaces.jpg\" /></a></li>\n"));
+        assertEquals(List.of(BASE + "/double.jpg", BASE + "/single.jpg", BASE + "/unquoted.jpg",
+                BASE + "/spaces.jpg"), urls);
+    }
+
+    @Test
+    void findsPhotoAmongOtherClassesLikeDom() throws IOException {
+        List<String> urls = assertSameUrls(render(
+                "<li><a class=\"photo other\"><img src=\"" + BASE + "/first.jpg\" /></a></li>\n"
+                        + "<li><a class=\"other  photo\"><img src=\"" + BASE + "/last.jpg\" /></a></li>\n"
+                        + "<li><a class=\"photos\"><img src=\"" + BASE + "/not-a-photo.jpg\" /></a></li>\n"
+                        + "<li><img class=\"thumb photo\" src=\"" + BASE + "/img.jpg\" /></li>\n"));
+        assertEquals(List.of(BASE + "/first.jpg", BASE + "/last.jpg", BASE + "/img.jpg"), urls);
+    }
+
+    /**
+     * @return 两种方式解析出的照片 URL
+     */
+    private static List<String> assertSameUrls(String html) throws IOException {
+        List<String> dom = FanfouAlbumDownloadTool.getPhotoUrls(Jsoup.parse(html, BASE));
+        List<String> stream = FanfouAlbumDownloadTool.getPhotoUrls(new StringReader(html));
+        assertEquals(dom, stream);
+        return stream;
+    }
+
+    private static String render(String photos) throws IOException {
+        try (InputStream in = PhotoUrlExtractorTest.class.getResourceAsStream("/album-page.html")) {
+            assertNotNull(in, "album-page.html not found");
+            String template = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            return template.replace("{{base}}", BASE)
+                    .replace("{{total}}", "0")
+                    .replace("{{photos}}", photos)
+                    .replace("{{pager}}", "<li class=\"current\">1</li>\n");
+        }
+    }
+}